@@ -0,0 +1,74 @@
+package g_earth.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * What the benchmark mains have in common: their arguments, timing an operation after a warm-up pass
+ * (with the heap allocation per call, which needs a HotSpot JVM) and summing up latencies.
+ */
+public final class Bench {
+
+    private Bench() {}
+
+    public interface Operation {
+        long run();     // the result gets consumed, so the JIT can't drop the work
+    }
+
+    public static class Result {
+        public final double nanosPerCall;
+        public final double bytesPerCall;
+        public final long result;
+
+        Result(double nanosPerCall, double bytesPerCall, long result) {
+            this.nanosPerCall = nanosPerCall;
+            this.bytesPerCall = bytesPerCall;
+            this.result = result;
+        }
+    }
+
+    /**
+     * @return the arguments as ints, or the defaults if there are none
+     */
+    public static int[] ints(String[] args, int... defaults) {
+        if (args.length == 0) return defaults;
+
+        int[] values = new int[args.length];
+        for (int i = 0; i < args.length; i++) values[i] = Integer.parseInt(args[i]);
+        return values;
+    }
+
+    public static int intArgument(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    /**
+     * Runs the operation iterations times to warm up, so the measured pass runs compiled, then times another iterations calls
+     */
+    public static Result measure(int iterations, Operation operation) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long sink = 0;
+
+        for (int i = 0; i < iterations; i++) sink += operation.run();
+
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink += operation.run();
+        long time = System.nanoTime() - start;
+        bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+        return new Result((double) time / iterations, (double) bytes / iterations, sink);
+    }
+
+    /**
+     * @return mean, median, p99 and max of the given times in nanoseconds, in microseconds
+     */
+    public static String latencies(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("mean %5d us, p50 %5d us, p99 %5d us, max %6d us",
+                (long) Arrays.stream(sorted).average().orElse(0) / 1000, sorted[sorted.length / 2] / 1000,
+                sorted[sorted.length * 99 / 100] / 1000, sorted[sorted.length - 1] / 1000);
+    }
+}
@@ -0,0 +1,62 @@
+package g_earth.protocol;
+
+import g_earth.bench.Bench;
+
+import java.util.Random;
+
+/**
+ * Times a full extension round trip of an HMessage (G-Earth -> extension -> G-Earth, packets built and parsed on
+ * both ends) in the string form and in the binary form, for a few packet sizes.
+ *
+ * usage: HMessageCodecScan [<packet size>...]
+ */
+public class HMessageCodecScan {
+
+    private static final int REQUEST_HEADER = 3;
+    private static final int REPLY_HEADER = 2;
+
+    public static void main(String[] args) {
+        for (int size : Bench.ints(args, 32, 512, 8192)) {
+            byte[] body = new byte[size];
+            new Random(1).nextBytes(body);
+            HMessage message = new HMessage(new HPacket(1234, body), HMessage.Side.TOCLIENT, 77);
+
+            HMessage check = new HMessage(new HPacket(1234, body), HMessage.Side.TOCLIENT, 77);
+            if (binaryRoundTrip(check) != 77 || !check.equals(message)) {
+                throw new IllegalStateException("the binary form doesn't survive a round trip");
+            }
+
+            int iterations = size > 1000 ? 200000 : 1000000;
+            Bench.Result string = Bench.measure(iterations, () -> stringRoundTrip(message));
+            Bench.Result binary = Bench.measure(iterations, () -> binaryRoundTrip(message));
+
+            System.out.println(String.format("%5d byte packet: string %7.0f ns, binary %6.0f ns per round trip   (%d)",
+                    size, string.nanosPerCall, binary.nanosPerCall, string.result + binary.result));
+        }
+    }
+
+    private static int stringRoundTrip(HMessage message) {
+        String request = message.stringify();
+        HPacket sent = new HPacketBuilder(REQUEST_HEADER, request.length() + 10).appendLongString(request).build();
+        HMessage received = new HMessage(new HPacket(sent.toBytes()).readLongString(6));
+
+        String reply = received.stringify();
+        HPacket replied = new HPacketBuilder(REPLY_HEADER, reply.length() + 10).appendLongString(reply).build();
+        String replyString = new HPacket(replied.toBytes()).readLongString(6);
+        HMessage back = new HMessage(replyString);
+        if (!message.equals(back)) message.constructFromString(replyString);
+        return back.getIndex();
+    }
+
+    private static int binaryRoundTrip(HMessage message) {
+        HPacketBuilder request = new HPacketBuilder(REQUEST_HEADER, message.getPacket().getBytesLength() + 16);
+        message.appendBinary(request);
+        HMessage received = new HMessage(new HPacket(request.build().toBytes()), 6);
+
+        HPacketBuilder reply = new HPacketBuilder(REPLY_HEADER, received.getPacket().getBytesLength() + 16);
+        received.appendBinary(reply);
+        HPacket replied = new HPacket(reply.build().toBytes());
+        if (!message.equalsBinary(replied, 6)) message.constructFromBinary(replied, 6);
+        return replied.readInteger(7);
+    }
+}
@@ -0,0 +1,32 @@
+package g_earth.protocol;
+
+import g_earth.bench.Bench;
+
+/**
+ * Measures the time and the heap allocation per HPacket read, on a typical packet (ints, shorts, a long, strings).
+ *
+ * usage: HPacketReadScan [<iterations>]
+ */
+public class HPacketReadScan {
+
+    public static void main(String[] args) {
+        int iterations = Bench.intArgument(args, 0, 5_000_000);
+
+        HPacket packet = new HPacket(1000)
+                .appendInt(1234).appendInt(-5).appendString("Hello, world").appendShort((short)12)
+                .appendBoolean(true).appendString("a somewhat longer string, as used for chat messages");
+        // there is no appendLong, the long at index 84 is written as 2 ints
+        packet.appendInt(0).appendInt(42).appendString("x");
+
+        print("readInteger", Bench.measure(iterations, () -> packet.readInteger(6) + packet.readInteger(10)));
+        print("readShort", Bench.measure(iterations, () -> packet.readShort(28) + packet.readUshort(28)));
+        print("readLong", Bench.measure(iterations, () -> packet.readLong(84)));
+        print("readString", Bench.measure(iterations, () -> packet.readString(14).length()));
+        print("structureEquals", Bench.measure(iterations, () -> packet.structureEquals("i,i,s,u,b,s,i,i,s") ? 1 : 0));
+    }
+
+    private static void print(String name, Bench.Result result) {
+        System.out.println(String.format("%-16s %6.1f ns/op %8.1f bytes/op   (%d)",
+                name, result.nanosPerCall, result.bytesPerCall, result.result));
+    }
+}
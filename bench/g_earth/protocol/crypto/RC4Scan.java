@@ -0,0 +1,35 @@
+package g_earth.protocol.crypto;
+
+import g_earth.bench.Bench;
+
+import java.util.Random;
+
+/**
+ * Measures the RC4 throughput and the heap allocation per call, for the allocating rc4(byte[])
+ * and for the in-place rc4(src, off, len, dst, dstOff).
+ *
+ * usage: RC4Scan [<packet size> [<iterations>]]
+ */
+public class RC4Scan {
+
+    public static void main(String[] args) {
+        int size = Bench.intArgument(args, 0, 1 << 20);
+        int iterations = Bench.intArgument(args, 1, Math.max(100, (200 << 20) / size));
+
+        byte[] key = new byte[256];
+        new Random(0).nextBytes(key);
+        RC4 rc4 = new RC4(key);
+        byte[] buffer = new byte[size];
+
+        print("rc4(in place)", buffer.length, Bench.measure(iterations, () -> {
+            rc4.rc4(buffer, 0, buffer.length, buffer, 0);
+            return buffer[0];
+        }));
+        print("rc4(byte[])", buffer.length, Bench.measure(iterations, () -> rc4.rc4(buffer)[0]));
+    }
+
+    private static void print(String name, int size, Bench.Result result) {
+        System.out.println(String.format("%-14s %5d byte packets: %7.0f MB/s %10.1f bytes allocated/call",
+                name, size, size / result.nanosPerCall * 1e9 / (1 << 20), result.bytesPerCall));
+    }
+}
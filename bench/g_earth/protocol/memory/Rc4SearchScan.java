@@ -0,0 +1,61 @@
+package g_earth.protocol.memory;
+
+import g_earth.bench.Bench;
+import g_earth.protocol.HPacket;
+import g_earth.protocol.crypto.RC4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times the search for the RC4 table of the first encrypted outgoing packets, with the real table
+ * hidden as the last of a growing amount of candidate tables (the worst case).
+ *
+ * usage: Rc4SearchScan [<amount of candidates>...]
+ */
+public class Rc4SearchScan {
+
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(0);
+        System.out.println("parallelism " + ForkJoinPool.commonPool().getParallelism());
+
+        for (int amount : Bench.ints(args, 1, 4, 16, 64)) {
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            for (int i = 0; i < 20; i++) {
+                plain.write(new HPacket(random.nextInt(4000)).appendInt(random.nextInt()).appendString("hello " + i).toBytes());
+            }
+
+            // the table in memory is the one after encrypting everything that was sent so far
+            RC4 cipher = new RC4("key " + amount);
+            byte[] encrypted = cipher.rc4(plain.toByteArray());
+
+            List<byte[]> candidates = new ArrayList<>();
+            for (int i = 0; i < amount - 1; i++) {
+                candidates.add(randomTable(random));
+            }
+            candidates.add(cipher.getState());
+
+            long start = System.nanoTime();
+            RC4 found = new Rc4Obtainer.RC4Search(candidates, encrypted, true).run();
+            long time = System.nanoTime() - start;
+
+            boolean correct = found != null && new String(found.rc4(encrypted), "ISO-8859-1").equals(plain.toString("ISO-8859-1"));
+            System.out.println(String.format("%3d candidates: %s in %d ms", amount, correct ? "found" : "NOT FOUND", time / 1000000));
+        }
+    }
+
+    private static byte[] randomTable(Random random) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 256; i++) values.add(i);
+        Collections.shuffle(values, random);
+
+        byte[] table = new byte[256];
+        for (int i = 0; i < 256; i++) table[i] = (byte)(int) values.get(i);
+        return table;
+    }
+}
@@ -0,0 +1,95 @@
+package g_earth.protocol.memory.habboclient.linux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Runs the RC4 table detector on a memory image instead of a running client, for tuning it without Habbo running.
+ *
+ * usage: MemoryImageScan <image>
+ *        MemoryImageScan <image> <size in MB> <amount of tables>   (first generates a random image with planted tables)
+ */
+public class MemoryImageScan {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && args.length != 3) {
+            System.out.println("usage: MemoryImageScan <image> [<size in MB> <amount of tables>]");
+            return;
+        }
+
+        File image = new File(args[0]);
+        Set<Long> planted = null;
+        if (args.length == 3) {
+            long start = System.nanoTime();
+            planted = generate(image, Long.parseLong(args[1]) << 20, Integer.parseInt(args[2]));
+            System.out.println(String.format("generated %d MB in %.1f s", image.length() >> 20, (System.nanoTime() - start) / 1e9));
+        }
+
+        try (FileChannel memory = FileChannel.open(image.toPath(), StandardOpenOption.READ)) {
+            List<long[]> regions = new ArrayList<>();
+            regions.add(new long[]{0, memory.size()});
+
+            RC4TableDetector detector = new PermutationTableDetector();
+            long start = System.nanoTime();
+            List<LinuxMemorySnippet> tables = detector.findTables(memory, regions);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            for (LinuxMemorySnippet table : tables) {
+                System.out.println("table at 0x" + Long.toHexString(table.getOffset()));
+            }
+            System.out.println(String.format("%d tables, scanned %d MB in %.2f s (%.2f GB/s)",
+                    tables.size(), memory.size() >> 20, seconds, memory.size() / seconds / (1 << 30)));
+
+            if (planted != null) {
+                int found = 0;
+                for (LinuxMemorySnippet table : tables) {
+                    if (planted.contains(table.getOffset())) found++;
+                }
+                System.out.println(found + "/" + planted.size() + " planted tables found");
+            }
+        }
+    }
+
+    private static Set<Long> generate(File image, long size, int amount) throws IOException {
+        Random random = new Random(0);
+        size -= size % 4;
+
+        try (FileChannel out = FileChannel.open(image.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer block = ByteBuffer.allocate(1 << 20);
+            for (long position = 0; position < size; position += block.capacity()) {
+                random.nextBytes(block.array());
+                block.clear();
+                block.limit((int)Math.min(block.capacity(), size - position));
+                while (block.hasRemaining()) {
+                    out.write(block, position + block.position());
+                }
+            }
+
+            // tables don't overlap each other
+            Set<Long> planted = new TreeSet<>();
+            long slots = size / 1024;
+            while (planted.size() < Math.min(amount, slots)) {
+                planted.add((long)(random.nextDouble() * slots) * 1024);
+            }
+
+            ByteBuffer table = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+            List<Integer> permutation = new ArrayList<>();
+            for (int i = 0; i < 256; i++) permutation.add(i);
+            for (long position : planted) {
+                Collections.shuffle(permutation, random);
+                table.clear();
+                for (int value : permutation) table.putInt(value);
+                table.flip();
+                while (table.hasRemaining()) {
+                    out.write(table, position + table.position());
+                }
+            }
+            return planted;
+        }
+    }
+}
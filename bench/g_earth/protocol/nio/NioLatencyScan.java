@@ -0,0 +1,198 @@
+package g_earth.protocol.nio;
+
+import g_earth.bench.Bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Measures the round trip over loopback through the nio engine and through the threaded pump HConnection uses
+ * without --nio (2 threads per session that poll available() and sleep 1 ms when there's nothing), idle and
+ * while another session has a handler that takes its time on every read (like a handler waiting for extensions).
+ * Both write straight to the other socket, so only the way of pumping differs.
+ *
+ * usage: NioLatencyScan [<round trips> [<stall in ms>]]
+ */
+public class NioLatencyScan {
+
+    private interface Proxy {
+        // returns the game side of a client -> proxy -> echo server session
+        Socket openSession(int stall) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int roundTrips = Bench.intArgument(args, 0, 2000);
+        int stall = Bench.intArgument(args, 1, 20);
+
+        ServerSocket echoServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        startEchoServer(echoServer);
+
+        ServerSocket threadedProxy = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        scan("threaded", stallMs -> openThreadedSession(threadedProxy, echoServer, stallMs), roundTrips, stall);
+
+        ServerSocketChannel nioProxy = ServerSocketChannel.open();
+        nioProxy.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        NioProxyEngine engine = new NioProxyEngine();
+        scan("nio", stallMs -> openSession(engine, nioProxy, echoServer, stallMs), roundTrips, stall);
+
+        engine.closeAll();
+        System.exit(0);
+    }
+
+    private static void scan(String name, Proxy proxy, int roundTrips, int stall) throws IOException {
+        System.out.println(String.format("%-8s idle:    %s", name, measure(proxy, roundTrips)));
+
+        Socket stalled = proxy.openSession(stall);
+        startTraffic(stalled);
+        System.out.println(String.format("%-8s stalled: %s (other session spends %d ms per read)",
+                name, measure(proxy, roundTrips), stall));
+        stalled.close();
+    }
+
+    private static String measure(Proxy proxy, int roundTrips) throws IOException {
+        Socket game = proxy.openSession(0);
+        game.setTcpNoDelay(true);
+        OutputStream out = game.getOutputStream();
+        InputStream in = game.getInputStream();
+        byte[] ping = new byte[8];
+        long[] times = new long[roundTrips];
+
+        for (int i = -100; i < roundTrips; i++) {
+            long start = System.nanoTime();
+            out.write(ping);
+            for (int read = 0; read < ping.length; ) {
+                int amount = in.read(ping, read, ping.length - read);
+                if (amount == -1) throw new IOException("session closed");
+                read += amount;
+            }
+            if (i >= 0) times[i] = System.nanoTime() - start;
+        }
+        game.close();
+        return Bench.latencies(times);
+    }
+
+    private static Socket openThreadedSession(ServerSocket proxy, ServerSocket echoServer, int stall) throws IOException {
+        Socket game = new Socket(InetAddress.getLoopbackAddress(), proxy.getLocalPort());
+        Socket client = proxy.accept();
+        Socket server = new Socket(InetAddress.getLoopbackAddress(), echoServer.getLocalPort());
+        client.setTcpNoDelay(true);
+        server.setTcpNoDelay(true);
+
+        pump(client, server, stall);
+        pump(server, client, 0);
+        return game;
+    }
+
+    // the loop of HConnection.startProxyThread
+    private static void pump(Socket from, Socket to, int stall) {
+        daemon(() -> {
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                while (!from.isClosed()) {
+                    byte[] buffer;
+                    while (in.available() > 0) {
+                        in.read(buffer = new byte[in.available()]);
+                        stall(stall);
+                        out.write(buffer);
+                    }
+                    Thread.sleep(1);
+                }
+            } catch (IOException | InterruptedException e) {
+                // session closed
+            }
+        });
+    }
+
+    private static void stall(int stall) {
+        if (stall > 0) {
+            try {
+                Thread.sleep(stall);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // the nio engine version of openThreadedSession
+    private static Socket openSession(NioProxyEngine engine, ServerSocketChannel proxy, ServerSocket echoServer, int stall) throws IOException {
+        Socket game = new Socket(InetAddress.getLoopbackAddress(), proxy.socket().getLocalPort());
+        SocketChannel client = proxy.accept();
+        SocketChannel server = SocketChannel.open(echoServer.getLocalSocketAddress());
+        client.socket().setTcpNoDelay(true);
+        server.socket().setTcpNoDelay(true);
+
+        ChannelOutputStream toServer = new ChannelOutputStream(server);
+        ChannelOutputStream toClient = new ChannelOutputStream(client);
+        engine.register(
+                client, buffer -> {
+                    stall(stall);
+                    toServer.write(buffer);
+                },
+                server, toClient::write,
+                () -> {}
+        );
+        return game;
+    }
+
+    private static void startEchoServer(ServerSocket echoServer) {
+        daemon(() -> {
+            try {
+                while (true) {
+                    Socket socket = echoServer.accept();
+                    socket.setTcpNoDelay(true);
+                    daemon(() -> {
+                        byte[] buffer = new byte[4096];
+                        try {
+                            InputStream in = socket.getInputStream();
+                            OutputStream out = socket.getOutputStream();
+                            int amount;
+                            while ((amount = in.read(buffer)) != -1) {
+                                out.write(buffer, 0, amount);
+                            }
+                        } catch (IOException e) {
+                            // session closed
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private static void startTraffic(Socket game) {
+        daemon(() -> {
+            byte[] packet = new byte[64];
+            try {
+                while (true) {
+                    game.getOutputStream().write(packet);
+                    Thread.sleep(1);
+                }
+            } catch (IOException | InterruptedException e) {
+                // session closed
+            }
+        });
+        daemon(() -> {
+            byte[] buffer = new byte[4096];
+            try {
+                while (game.getInputStream().read(buffer) != -1) ;
+            } catch (IOException e) {
+                // session closed
+            }
+        });
+    }
+
+    private static void daemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
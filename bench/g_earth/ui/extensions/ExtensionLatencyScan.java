@@ -0,0 +1,48 @@
+package g_earth.ui.extensions;
+
+import g_earth.bench.Bench;
+import g_earth.protocol.HMessage;
+import g_earth.protocol.HPacket;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the time from intercepting a packet until every extension replied, with a growing amount of
+ * extensions that intercept every packet without changing it.
+ *
+ * usage: ExtensionLatencyScan [<amount of extensions>...]
+ */
+public class ExtensionLatencyScan {
+
+    private static final int PACKETS = 5000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ReplyingExtensions extensions = new ReplyingExtensions();
+
+        for (int amount : Bench.ints(args, 1, 4)) {
+            extensions.growTo(amount);
+
+            // the first pass warms up
+            scan(extensions.interceptor, 0);
+            long[] times = scan(extensions.interceptor, PACKETS);
+
+            System.out.println(String.format("%2d extension(s): %s", amount, Bench.latencies(times)));
+        }
+        System.exit(0);
+    }
+
+    private static long[] scan(ExtensionInterceptor interceptor, int firstIndex) throws InterruptedException {
+        long[] times = new long[PACKETS];
+        for (int i = 0; i < PACKETS; i++) {
+            HMessage message = new HMessage(new HPacket(100 + i % 50).appendInt(i).appendInt(7), HMessage.Side.TOSERVER, firstIndex + i);
+            CountDownLatch done = new CountDownLatch(1);
+
+            long start = System.nanoTime();
+            interceptor.onCapture(message, done::countDown);
+            done.await();
+            times[i] = System.nanoTime() - start;
+        }
+        return times;
+    }
+}
@@ -0,0 +1,78 @@
+package g_earth.ui.extensions;
+
+import g_earth.bench.Bench;
+import g_earth.protocol.AsyncTrafficListener;
+import g_earth.protocol.HPacket;
+import g_earth.protocol.TrafficListener;
+import g_earth.protocol.packethandler.OutgoingHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many packets per second get through the outgoing handler while extensions intercept every
+ * packet, with the handler waiting for each packet before handing over the next one and with pipelined
+ * interception (what --pipelined enables).
+ *
+ * usage: ExtensionThroughputScan [<amount of extensions>...]
+ */
+public class ExtensionThroughputScan {
+
+    private static final int PACKETS = 5000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ReplyingExtensions extensions = new ReplyingExtensions();
+
+        CopyOnWriteArrayList<AsyncTrafficListener> asyncListeners = new CopyOnWriteArrayList<>();
+        asyncListeners.add(extensions.interceptor);
+        Object[] listeners = {new CopyOnWriteArrayList<TrafficListener>(), new CopyOnWriteArrayList<TrafficListener>(),
+                new CopyOnWriteArrayList<TrafficListener>(), asyncListeners};
+
+        byte[][] packets = new byte[PACKETS][];
+        long total = 0;
+        for (int i = 0; i < PACKETS; i++) {
+            packets[i] = new HPacket(100 + i % 50).appendInt(i).appendInt(7).toBytes();
+            total += packets[i].length;
+        }
+
+        for (int amount : Bench.ints(args, 1, 4)) {
+            extensions.growTo(amount);
+
+            for (boolean pipelined : new boolean[]{false, true}) {
+                // the first pass warms up
+                scan(listeners, packets, total, pipelined);
+                double perSecond = scan(listeners, packets, total, pipelined);
+                System.out.println(String.format("%2d extension(s), %-13s %6.0f packets/s",
+                        amount, pipelined ? "pipelined:" : "one at a time:", perSecond));
+            }
+        }
+        System.exit(0);
+    }
+
+    private static double scan(Object[] listeners, byte[][] packets, long total, boolean pipelined) throws IOException, InterruptedException {
+        AtomicLong written = new AtomicLong();
+        OutputStream server = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written.addAndGet(len);
+            }
+        };
+
+        OutgoingHandler handler = new OutgoingHandler(server, listeners);
+        handler.setPipelined(pipelined);
+
+        long start = System.nanoTime();
+        for (byte[] packet : packets) {
+            handler.act(packet);
+        }
+        while (written.get() < total) Thread.sleep(1);
+        return packets.length / ((System.nanoTime() - start) / 1e9);
+    }
+}
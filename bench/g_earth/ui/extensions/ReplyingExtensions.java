@@ -0,0 +1,70 @@
+package g_earth.ui.extensions;
+
+import g_earth.Main;
+import g_earth.extensions.Extension;
+import g_earth.extensions.ExtensionInfo;
+import g_earth.protocol.HConnection;
+import g_earth.protocol.HMessage;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extensions in this process that intercept every packet to the server and reply without changing it.
+ * They talk to the ExtensionInterceptor over the extension socket like any other extension.
+ */
+class ReplyingExtensions {
+
+    @ExtensionInfo(
+            Title = "replying extension",
+            Description = "replies to every packet",
+            Version = "1.0",
+            Author = ""
+    )
+    static class ReplyingExtension extends Extension {
+
+        ReplyingExtension(String[] args) {
+            super(args);
+        }
+
+        @Override
+        protected void init() {
+            intercept(HMessage.Side.TOSERVER, message -> {});
+        }
+    }
+
+    final ExtensionInterceptor interceptor;
+    private final GEarthExtensionsRegistrer registrer;
+    private final AtomicInteger connected = new AtomicInteger();
+    private int started = 0;
+
+    ReplyingExtensions() throws IOException {
+        if (Main.args == null) Main.args = new String[0];
+
+        interceptor = new ExtensionInterceptor(new HConnection());
+        registrer = new GEarthExtensionsRegistrer(new GEarthExtensionsRegistrer.ExtensionRegisterObserver() {
+            @Override
+            public void onConnect(GEarthExtension extension) {
+                interceptor.onConnect(extension);
+                connected.incrementAndGet();
+            }
+
+            @Override
+            public void onDisconnect(GEarthExtension extension) {
+                interceptor.onDisconnect(extension);
+            }
+        });
+    }
+
+    // starts extensions until there are amount of them
+    void growTo(int amount) throws InterruptedException {
+        for (; started < amount; started++) {
+            Thread thread = new Thread(new ReplyingExtension(new String[]{"-p", registrer.getPort() + ""})::run);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        while (connected.get() < amount) Thread.sleep(10);
+        // give the extensions the time to send their subscriptions
+        Thread.sleep(500);
+    }
+}
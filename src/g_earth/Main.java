@@ -36,6 +36,30 @@ public class Main extends Application {
 
     public static String[] args;
 
+    /**
+     * @return true if G-Earth got started with this flag (for example --nio)
+     */
+    public static boolean hasFlag(String flag) {
+        if (args == null) return false;
+        for (String arg : args) {
+            if (arg.equalsIgnoreCase(flag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the value of an argument like --name=value, null if G-Earth didn't get started with it
+     */
+    public static String getArgument(String name) {
+        if (args == null) return null;
+        for (String arg : args) {
+            if (arg.toLowerCase().startsWith(name.toLowerCase() + "=")) {
+                return arg.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
     public static void main(String[] args) {
         Main.args = args;
         launch(args);
@@ -2,6 +2,7 @@ package g_earth.extensions;
 
 import g_earth.protocol.HMessage;
 import g_earth.protocol.HPacket;
+import g_earth.protocol.HPacketBuilder;
 import g_earth.ui.extensions.Extensions;
 
 import java.io.*;
@@ -36,6 +37,10 @@ public abstract class Extension {
     private final Map<Integer, List<MessageListener>> outgoingMessageListeners = new HashMap<>();
     private FlagsCheckListener flagRequestCallback = null;
 
+    // capabilities G-Earth agreed on in the INIT message
+    private volatile int capabilities = 0;
+    private volatile boolean isInitialized = false;
+
     private String getArgument(String[] args, String... arg) {
         for (int i = 0; i < args.length - 1; i++) {
             for (String str : arg) {
@@ -115,7 +120,7 @@ public abstract class Extension {
                 if (packet.headerId() == Extensions.OUTGOING_MESSAGES_IDS.INFOREQUEST) {
                     ExtensionInfo info = getInfoAnnotations();
 
-                    HPacket response = new HPacket(Extensions.INCOMING_MESSAGES_IDS.EXTENSIONINFO);
+                    HPacketBuilder response = new HPacketBuilder(Extensions.INCOMING_MESSAGES_IDS.EXTENSIONINFO);
                     response.appendString(info.Title())
                             .appendString(info.Author())
                             .appendString(info.Version())
@@ -124,8 +129,9 @@ public abstract class Extension {
                             .appendBoolean(file != null)
                             .appendString(file == null ? "": file)
                             .appendBoolean(CANLEAVE)
-                            .appendBoolean(CANDELETE);
-                    writeToStream(response.toBytes());
+                            .appendBoolean(CANDELETE)
+                            .appendInt(Extensions.CAPABILITIES.BINARYMESSAGES | Extensions.CAPABILITIES.UNCHANGEDREPLIES);
+                    writeToStream(response.build());
                 }
                 else if (packet.headerId() == Extensions.OUTGOING_MESSAGES_IDS.CONNECTIONSTART) {
                     onStartConnection();
@@ -146,7 +152,12 @@ public abstract class Extension {
                     flagRequestCallback = null;
                 }
                 else if (packet.headerId() == Extensions.OUTGOING_MESSAGES_IDS.INIT) {
+                    // older G-Earth versions send an empty body
+                    capabilities = packet.isEOF() == 0 ? packet.readInteger() : 0;
                     init();
+                    // until the first subscriptions arrive G-Earth sends every packet, so only send them once init() registered its listeners
+                    isInitialized = true;
+                    sendSubscriptions();
                 }
                 else if (packet.headerId() == Extensions.OUTGOING_MESSAGES_IDS.FREEFLOW) {
                     // nothing to be done yet
@@ -155,9 +166,10 @@ public abstract class Extension {
                     onClick();
                 }
                 else if (packet.headerId() == Extensions.OUTGOING_MESSAGES_IDS.PACKETINTERCEPT) {
-                    String stringifiedMessage = packet.readLongString();
-                    HMessage habboMessage = new HMessage(stringifiedMessage);
+                    boolean binary = (capabilities & Extensions.CAPABILITIES.BINARYMESSAGES) != 0;
+                    HMessage habboMessage = binary ? new HMessage(packet, 6) : new HMessage(packet.readLongString());
                     HPacket habboPacket = habboMessage.getPacket();
+                    boolean wasReplaced = habboPacket.isReplaced();
 
                     Map<Integer, List<MessageListener>> listeners =
                             habboMessage.getDestination() == HMessage.Side.TOCLIENT ?
@@ -188,10 +200,25 @@ public abstract class Extension {
                     }
                     habboMessage.getPacket().setReadIndex(6);
 
-                    HPacket response = new HPacket(Extensions.INCOMING_MESSAGES_IDS.MANIPULATEDPACKET);
-                    response.appendLongString(habboMessage.stringify());
+                    HPacketBuilder response;
+                    if ((capabilities & Extensions.CAPABILITIES.UNCHANGEDREPLIES) != 0 && !wasReplaced && !habboMessage.getPacket().isReplaced()) {
+                        // no listener touched the packet, G-Earth only needs to know whether it got blocked
+                        response = new HPacketBuilder(Extensions.INCOMING_MESSAGES_IDS.UNCHANGEDPACKET, 12);
+                        response.appendByte(habboMessage.isBlocked() ? (byte)1 : (byte)0)
+                                .appendInt(habboMessage.getIndex())
+                                .appendByte(habboMessage.getDestination() == HMessage.Side.TOCLIENT ? (byte)0 : (byte)1);
+                    }
+                    else if (binary) {
+                        response = new HPacketBuilder(Extensions.INCOMING_MESSAGES_IDS.MANIPULATEDPACKET, habboMessage.getPacket().getBytesLength() + 16);
+                        habboMessage.appendBinary(response);
+                    }
+                    else {
+                        String stringifiedResponse = habboMessage.stringify();
+                        response = new HPacketBuilder(Extensions.INCOMING_MESSAGES_IDS.MANIPULATEDPACKET, stringifiedResponse.length() + 10);
+                        response.appendLongString(stringifiedResponse);
+                    }
 
-                    writeToStream(response.toBytes());
+                    writeToStream(response.build());
 
                 }
             }
@@ -211,9 +238,9 @@ public abstract class Extension {
         }
     }
 
-    private void writeToStream(byte[] bytes) throws IOException {
+    private void writeToStream(HPacket packet) throws IOException {
         synchronized (this) {
-            out.write(bytes);
+            packet.writeTo(out);
         }
     }
 
@@ -235,12 +262,12 @@ public abstract class Extension {
         return send(packet, HMessage.Side.TOSERVER);
     }
     private boolean send(HPacket packet, HMessage.Side side) {
-        HPacket packet1 = new HPacket(Extensions.INCOMING_MESSAGES_IDS.SENDMESSAGE);
+        HPacketBuilder packet1 = new HPacketBuilder(Extensions.INCOMING_MESSAGES_IDS.SENDMESSAGE, packet.getBytesLength() + 11);
         packet1.appendByte(side == HMessage.Side.TOCLIENT ? (byte)0 : (byte)1);
         packet1.appendInt(packet.getBytesLength());
         packet1.appendBytes(packet.toBytes());
         try {
-            writeToStream(packet1.toBytes());
+            writeToStream(packet1.build());
             return true;
         } catch (IOException e) {
             return false;
@@ -259,14 +286,46 @@ public abstract class Extension {
                         incomingMessageListeners :
                         outgoingMessageListeners;
 
+        boolean newHeader = false;
         synchronized (listeners) {
             if (!listeners.containsKey(headerId)) {
                 listeners.put(headerId, new ArrayList<>());
+                newHeader = true;
             }
         }
 
 
         listeners.get(headerId).add(messageListener);
+
+        if (newHeader && isInitialized) {
+            try {
+                sendSubscriptions();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // G-Earth only sends the packets of which the header id got subscribed on, -1 = all packets of that side
+    private void sendSubscriptions() throws IOException {
+        List<Integer> incoming;
+        List<Integer> outgoing;
+        synchronized (incomingMessageListeners) {
+            incoming = new ArrayList<>(incomingMessageListeners.keySet());
+        }
+        synchronized (outgoingMessageListeners) {
+            outgoing = new ArrayList<>(outgoingMessageListeners.keySet());
+        }
+
+        HPacketBuilder packet = new HPacketBuilder(Extensions.INCOMING_MESSAGES_IDS.INTERCEPTSUBSCRIPTIONS, (incoming.size() + outgoing.size()) * 5 + 10);
+        packet.appendInt(incoming.size() + outgoing.size());
+        for (int headerId : incoming) {
+            packet.appendByte((byte)0).appendInt(headerId);
+        }
+        for (int headerId : outgoing) {
+            packet.appendByte((byte)1).appendInt(headerId);
+        }
+        writeToStream(packet.build());
     }
 
     /**
@@ -295,10 +354,10 @@ public abstract class Extension {
      * @param s the text to be written
      */
     protected void writeToConsole(String s) {
-        HPacket packet = new HPacket(Extensions.INCOMING_MESSAGES_IDS.EXTENSIONCONSOLELOG);
+        HPacketBuilder packet = new HPacketBuilder(Extensions.INCOMING_MESSAGES_IDS.EXTENSIONCONSOLELOG, s.length() + 8);
         packet.appendString(s);
         try {
-            writeToStream(packet.toBytes());
+            writeToStream(packet.build());
         } catch (IOException e) {
             e.printStackTrace();
         }
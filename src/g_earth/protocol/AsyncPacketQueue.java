@@ -0,0 +1,135 @@
+package g_earth.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue behind sendToClientAsync/sendToServerAsync, drained by a single thread that sleeps while it's empty.
+ * The sender may hold the thread up while the stream is behind, the queue then fills up.
+ * What happens when the queue is full depends on the OverflowPolicy.
+ */
+public class AsyncPacketQueue {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    public enum OverflowPolicy {
+        BLOCK,          // wait for space, the sender gets slowed down
+        DROP_OLDEST,    // make space by dropping the packet that has been waiting the longest
+        REJECT          // drop the new packet
+    }
+
+    public interface Sender {
+        boolean send(HPacket packet);   // false if the packet couldn't be sent
+    }
+
+    private final BlockingQueue<HPacket> queue;
+    private final Sender sender;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    public AsyncPacketQueue(String name, Sender sender) {
+        this(name, sender, DEFAULT_CAPACITY);
+    }
+    public AsyncPacketQueue(String name, Sender sender, int capacity) {
+        this.sender = sender;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return false if the packet was dropped
+     */
+    public boolean add(HPacket packet) {
+        return add(packet, overflowPolicy);
+    }
+
+    /**
+     * Like add, but never waits for space: with the BLOCK policy a full queue rejects the packet
+     * @return false if the packet was dropped
+     */
+    public boolean offer(HPacket packet) {
+        OverflowPolicy policy = overflowPolicy;
+        return add(packet, policy == OverflowPolicy.BLOCK ? OverflowPolicy.REJECT : policy);
+    }
+
+    private boolean add(HPacket packet, OverflowPolicy policy) {
+        switch (policy) {
+            case BLOCK:
+                try {
+                    queue.put(packet);
+                    return true;
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            case DROP_OLDEST:
+                while (!queue.offer(packet)) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                return true;
+            default:
+                if (queue.offer(packet)) return true;
+                dropped.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * @return the amount of packets that were queued, the others were dropped
+     */
+    public int addAll(List<HPacket> packets) {
+        int added = 0;
+        for (HPacket packet : packets) {
+            if (add(packet)) added++;
+        }
+        return added;
+    }
+
+    public void clear() {
+        queue.clear();
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void run() {
+        List<HPacket> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+            queue.drainTo(batch);
+
+            // packets that can't be sent (no connection, or the stream is gone) count as dropped as well
+            for (HPacket packet : batch) {
+                if (!sender.send(packet)) {
+                    dropped.incrementAndGet();
+                }
+            }
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package g_earth.protocol;
+
+/**
+ * A modification listener (order 1) of which the handling may finish on another thread.
+ * The packet gets forwarded (or not, if blocked) once onDone has been called.
+ */
+public interface AsyncTrafficListener {
+
+    /**
+     * @param onDone must be called exactly once, after the last change to the message
+     */
+    void onCapture(HMessage message, Runnable onDone);
+
+}
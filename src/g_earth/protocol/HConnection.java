@@ -4,58 +4,31 @@ import g_earth.misc.Cacher;
 import g_earth.protocol.hostreplacer.HostReplacer;
 import g_earth.protocol.hostreplacer.HostReplacerFactory;
 import g_earth.protocol.memory.Rc4Obtainer;
+import g_earth.protocol.nio.ChannelOutputStream;
+import g_earth.protocol.nio.NioProxyEngine;
 import g_earth.protocol.packethandler.Handler;
 import g_earth.protocol.packethandler.IncomingHandler;
 import g_earth.protocol.packethandler.OutgoingHandler;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class HConnection {
 
     public static final String HOTELS_CACHE_KEY = "hotelsConnectionInfo";
+    private static final int MAX_WRITE_BACKLOG = 256;    // packets waiting in a handler's writer before the async queues hold back
 
-    private final Queue<HPacket> sendToClientAsyncQueue = new LinkedList<>();
-    private final Queue<HPacket> sendToServerAsyncQueue = new LinkedList<>();
-    public HConnection() {
-        new Thread(() -> {
-            while (true) {
-                HPacket packet;
-                synchronized (sendToClientAsyncQueue) {
-                    while ((packet = sendToClientAsyncQueue.poll()) != null) {
-                        sendToClient(packet);
-                    }
-                }
-
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) { //java........................................
-                    e.printStackTrace();
-                }
-            }
-        }).start();
-
-        new Thread(() -> {
-            while (true) {
-                HPacket packet;
-                synchronized (sendToServerAsyncQueue) {
-                    while ((packet = sendToServerAsyncQueue.poll()) != null) {
-                        sendToServer(packet);
-                    }
-                }
-
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }).start();
-    }
+    private final AsyncPacketQueue sendToClientAsyncQueue = new AsyncPacketQueue("G-Earth async to client", message -> sendQueued(HMessage.Side.TOCLIENT, message));
+    private final AsyncPacketQueue sendToServerAsyncQueue = new AsyncPacketQueue("G-Earth async to server", message -> sendQueued(HMessage.Side.TOSERVER, message));
 
     public enum State {
         NOT_CONNECTED,
@@ -93,8 +66,9 @@ public class HConnection {
     private static final HostReplacer hostsReplacer = HostReplacerFactory.get();
 
     private volatile boolean hostRedirected = false;
-    private volatile Object[] trafficListeners = {new ArrayList<TrafficListener>(), new ArrayList<TrafficListener>(), new ArrayList<TrafficListener>()};
-    private volatile List<StateChangeListener> stateChangeListeners = new ArrayList<>();
+    // listeners come and go while the handler threads and setState iterate them
+    private volatile Object[] trafficListeners = {new CopyOnWriteArrayList<TrafficListener>(), new CopyOnWriteArrayList<TrafficListener>(), new CopyOnWriteArrayList<TrafficListener>(), new CopyOnWriteArrayList<AsyncTrafficListener>()};
+    private volatile List<StateChangeListener> stateChangeListeners = new CopyOnWriteArrayList<>();
     private volatile State state = State.NOT_CONNECTED;
 
     private volatile List<String> input_domain = new ArrayList<>();        // given string representation
@@ -111,6 +85,22 @@ public class HConnection {
 
     private volatile String clientHostAndPort = "";
 
+    private volatile boolean useNioEngine = false;
+    private final NioProxyEngine nioEngine = new NioProxyEngine();
+
+    private volatile boolean pipelinedInterception = false;
+
+    private volatile boolean preconnect = false;
+    private volatile UpstreamPool upstreamPool = null;
+
+    // guards the proxies and the hosts file while hosts resolve in the background
+    private final Object proxyLock = new Object();
+    private volatile int generation = 0;        // bumped when the prepared hosts become invalid, older lookups get ignored
+    private volatile List<CompletableFuture<String>> resolving = new ArrayList<>();
+    private int failedHosts = 0;
+    private boolean clientAccepted = false;
+    private final List<ResolveFailureListener> resolveFailureListeners = new CopyOnWriteArrayList<>();
+
 
     public State getState() {
         return state;
@@ -141,105 +131,172 @@ public class HConnection {
 
     private void prepare(List<String> allPotentialHosts) {
         setState(State.PREPARING);
-        input_domain.clear();
-        actual_domain.clear();
-        port.clear();
-        clearAllProxies();
-        realProxyIndex = -1;
-
-        for (String host : allPotentialHosts) {
-            String[] split = host.split(":");
-            input_domain.add(split[0]);
-            port.add(Integer.parseInt(split[1]));
-        }
 
-        if (hostRedirected)	{
-            removeFromHosts();
-        }
+        synchronized (proxyLock) {
+            generation++;
+            if (hostRedirected)	{
+                removeFromHosts();
+            }
 
+            input_domain.clear();
+            actual_domain.clear();
+            port.clear();
+            clearAllProxies();
+            realProxyIndex = -1;
 
-        List<String> willremove = new ArrayList<>();
-        for (String host : allPotentialHosts) {
-            InetAddress address = null;
-            try {
-                address = InetAddress.getByName(host.split(":")[0]);
-                actual_domain.add(address.getHostAddress());
-            } catch (UnknownHostException e) {
-//                e.printStackTrace();
-                actual_domain.add(null);
-                willremove.add(host);
+            for (String host : allPotentialHosts) {
+                String[] split = host.split(":");
+                input_domain.add(split[0]);
+                port.add(Integer.parseInt(split[1]));
             }
-        }
 
-        List<String> additionalCachedHotels = (List<String>) Cacher.get(HOTELS_CACHE_KEY);
-        if (additionalCachedHotels != null) {
-            for (String host: willremove) {
-                additionalCachedHotels.remove(host);
+            // every host resolves on its own, hotels sharing a host share the lookup
+            Map<String, CompletableFuture<String>> lookups = new HashMap<>();
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (String domain : input_domain) {
+                actual_domain.add(null);
+                proxy.add(null);
+                futures.add(lookups.computeIfAbsent(domain, HostResolver::resolve));
             }
-            Cacher.put(HOTELS_CACHE_KEY, additionalCachedHotels);
+            resolving = futures;
         }
 
         setState(State.PREPARED);
     }
 
+    /**
+     * Opens the proxy of a hotel (and redirects its host) as soon as its host is resolved,
+     * hosts that fail to resolve are reported to the ResolveFailureListeners
+     */
     public void start() throws IOException	{
         if (state == State.PREPARED)	{
 
             setState(State.WAITING_FOR_CLIENT);
-            if (!hostRedirected)	{
-                addToHosts();
+
+            int startedGeneration;
+            List<CompletableFuture<String>> futures;
+            boolean nio = useNioEngine;
+            synchronized (proxyLock) {
+                startedGeneration = generation;
+                futures = resolving;
+                failedHosts = 0;
+                clientAccepted = false;
+                if (preconnect) {
+                    upstreamPool = new UpstreamPool(new ArrayList<>(port), nio);
+                }
             }
 
+            for (int i = 0; i < futures.size(); i++) {
+                int index = i;
+                futures.get(i).whenComplete((address, error) -> onResolved(startedGeneration, index, address, error, nio));
+            }
 
-            for (int i = 0; i < actual_domain.size(); i++) {
-                if (actual_domain.get(i) == null) continue;
+            if (DEBUG) System.out.println("done waiting for clients with: " + this.state );
+        }
+    }
+
+    private void onResolved(int startedGeneration, int i, String address, Throwable error, boolean nio) {
+        boolean allFailed = false;
+        synchronized (proxyLock) {
+            // a lookup of an earlier attempt, or the client is already there
+            if (startedGeneration != generation || state != State.WAITING_FOR_CLIENT || clientAccepted) return;
+
+            if (error == null) {
+                try {
+                    openProxy(i, address, nio);
+                    actual_domain.set(i, address);
+                    hostsReplacer.addRedirect(new String[]{redirectLine(i)});
+                    hostRedirected = true;
+
+                    UpstreamPool pool = upstreamPool;
+                    if (pool != null) pool.add(i, address);
+                    return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    error = e;
+                }
+            }
+
+            if (error instanceof UnknownHostException) {
+                forgetCachedHotel(input_domain.get(i) + ":" + port.get(i));
+            }
+            for (ResolveFailureListener listener : resolveFailureListeners) {
+                listener.resolveFailed(input_domain.get(i), port.get(i), error);
+            }
+            failedHosts++;
+            allFailed = failedHosts == input_domain.size();
+        }
+
+        if (allFailed) {
+            abort();
+        }
+    }
+
+    private void forgetCachedHotel(String host) {
+        List<String> additionalCachedHotels = (List<String>) Cacher.get(HOTELS_CACHE_KEY);
+        if (additionalCachedHotels != null && additionalCachedHotels.remove(host)) {
+            Cacher.put(HOTELS_CACHE_KEY, additionalCachedHotels);
+        }
+    }
 
-                ServerSocket proxy = new ServerSocket(port.get(i), 10, InetAddress.getByName("127.0.0." + (i+1)));
-                this.proxy.add(proxy);
-                String dom = actual_domain.get(i);
-                Integer port2 = port.get(i);
+    // proxyLock must be held
+    private void openProxy(int i, String dom, boolean nio) throws IOException {
+        ServerSocket proxy;
+        if (nio) {
+            // accepted sockets must be backed by a channel
+            proxy = ServerSocketChannel.open().socket();
+            proxy.bind(new InetSocketAddress(InetAddress.getByName("127.0.0." + (i+1)), port.get(i)), 10);
+        }
+        else {
+            proxy = new ServerSocket(port.get(i), 10, InetAddress.getByName("127.0.0." + (i+1)));
+        }
+        this.proxy.set(i, proxy);
+        Integer port2 = port.get(i);
 
-                int[] i2 = {i};
+        new Thread(() -> {
+            try  {
+                Thread.sleep(100);
+                while ((state == State.WAITING_FOR_CLIENT) && !proxy.isClosed())	{
+                    try {
+                        Socket client = proxy.accept();
+                        UpstreamPool pool = upstreamPool;
+                        Socket upstream = pool == null ? null : pool.take(i);
+                        synchronized (proxyLock) {
+                            realProxyIndex = i;
+                            clientAccepted = true;
+                            closeAllProxies(i);
+                        }
+                        if (DEBUG) System.out.println("accepted a proxy");
 
-                new Thread(() -> {
-                    try  {
-                        Thread.sleep(100);
-                        while ((state == State.WAITING_FOR_CLIENT) && !proxy.isClosed())	{
+                        new Thread(() -> {
                             try {
-                                Socket client = proxy.accept();
-                                realProxyIndex = i2[0];
-                                closeAllProxies(i2[0]);
-                                if (DEBUG) System.out.println("accepted a proxy");
-
-                                new Thread(() -> {
-                                    try {
-                                        startProxyThread(client, dom, port2);
-                                    } catch (InterruptedException | IOException e) {
-                                        // TODO Auto-generated catch block
-                                        e.printStackTrace();
-                                    }
-                                }).start();
-
-
-                            } catch (IOException e1) {
+                                if (nio) {
+                                    startNioProxy(client.getChannel(), upstream == null ? null : upstream.getChannel(), dom, port2);
+                                }
+                                else {
+                                    startProxyThread(client, upstream, dom, port2);
+                                }
+                            } catch (InterruptedException | IOException e) {
                                 // TODO Auto-generated catch block
-//                                e1.printStackTrace();
+                                e.printStackTrace();
                             }
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }).start();
-            }
+                        }).start();
 
 
-            if (DEBUG) System.out.println("done waiting for clients with: " + this.state );
-        }
+                    } catch (IOException e1) {
+                        // TODO Auto-generated catch block
+//                        e1.printStackTrace();
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
     }
-    private void startProxyThread(Socket client, String ip, int port) throws InterruptedException, UnknownHostException, IOException	{
+    private void startProxyThread(Socket client, Socket upstream, String ip, int port) throws InterruptedException, UnknownHostException, IOException	{
         final boolean[] datastream = new boolean[1];
 
-        Socket habbo_server = new Socket(ip, port);
+        Socket habbo_server = upstream != null ? upstream : new Socket(ip, port);
 
         OutputStream client_out = client.getOutputStream();
         InputStream client_in = client.getInputStream();
@@ -254,28 +311,15 @@ public class HConnection {
 
         // wachten op data van client
         new Thread(() -> {
+            OutgoingHandler handler = new OutgoingHandler(habbo_server_out, trafficListeners);
+            handler.setPipelined(pipelinedInterception);
+            rc4Obtainer.setOutgoingHandler(handler);
             try {
-                OutgoingHandler handler = new OutgoingHandler(habbo_server_out, trafficListeners);
-                rc4Obtainer.setOutgoingHandler(handler);
-
                 while (!client.isClosed() && (state == State.WAITING_FOR_CLIENT || state == State.CONNECTED)) {
                     byte[] buffer;
                     while (client_in.available() > 0)	{
                         client_in.read(buffer = new byte[client_in.available()]);
-
-                        handler.act(buffer);
-                        if (!datastream[0] && handler.isDataStream())	{
-                            clientHostAndPort = client.getLocalAddress().getHostAddress() + ":" + client.getPort();
-                            if (DEBUG) System.out.println(clientHostAndPort);
-                            datastream[0] = true;
-                            setState(State.CONNECTED);
-                            onConnect();
-
-                            outHandler = handler;
-                            //client_outputStream = client_out;
-                            //server_outputStream = habbo_server_out;
-                        }
-
+                        onClientRead(handler, buffer, client, datastream);
                     }
                     Thread.sleep(1);
 
@@ -286,6 +330,7 @@ public class HConnection {
             }
             finally {
                 if (DEBUG) System.out.println("abortclient");
+                handler.close();
                 try {
                     if (habbo_server_out != null) habbo_server_out.close();
                     if (habbo_server_in != null) habbo_server_in.close();
@@ -306,25 +351,22 @@ public class HConnection {
         }).start();
         // wachten op data van server
         new Thread(() -> {
+            IncomingHandler handler = new IncomingHandler(client_out, trafficListeners);
+            handler.setPipelined(pipelinedInterception);
+            rc4Obtainer.setIncomingHandler(handler);
             try {
-                IncomingHandler handler = new IncomingHandler(client_out, trafficListeners);
-                rc4Obtainer.setIncomingHandler(handler);
-
                 while (!habbo_server.isClosed() && (state == State.CONNECTED || state == State.WAITING_FOR_CLIENT)) {
                     byte[] buffer;
                     while (habbo_server_in.available() > 0) {
                         habbo_server_in.read(buffer = new byte[habbo_server_in.available()]);
-                        if (!handler.isDataStream() && datastream[0]) {
-                            handler.setAsDataStream();
-                            inHandler = handler;
-                        }
-                        handler.act(buffer);
+                        onServerRead(handler, buffer, datastream);
                     }
                     Thread.sleep(1);
                 }
             } catch (IOException | InterruptedException e) {
                 e.printStackTrace();
             } finally {
+                handler.close();
                 try {
                     if (habbo_server_out != null) habbo_server_out.close();
                     if (habbo_server_in != null) habbo_server_in.close();
@@ -353,27 +395,87 @@ public class HConnection {
             e.printStackTrace();
         }
     }
-    private void onConnect()	{
-        if (hostRedirected)	{
-            removeFromHosts();
+    private void startNioProxy(SocketChannel client, SocketChannel upstream, String ip, int port) throws IOException {
+        final boolean[] datastream = new boolean[1];
+
+        SocketChannel habbo_server = upstream != null ? upstream : SocketChannel.open(new InetSocketAddress(ip, port));
+        if (DEBUG) System.out.println(habbo_server.socket().getLocalAddress().getHostAddress() + ": " + habbo_server.socket().getLocalPort());
+
+        Rc4Obtainer rc4Obtainer = new Rc4Obtainer(this);
+        OutgoingHandler outgoingHandler = new OutgoingHandler(new ChannelOutputStream(habbo_server), trafficListeners);
+        IncomingHandler incomingHandler = new IncomingHandler(new ChannelOutputStream(client), trafficListeners);
+        outgoingHandler.setPipelined(pipelinedInterception);
+        incomingHandler.setPipelined(pipelinedInterception);
+        rc4Obtainer.setOutgoingHandler(outgoingHandler);
+        rc4Obtainer.setIncomingHandler(incomingHandler);
+
+        NioProxyEngine.Session session = nioEngine.register(
+                client, buffer -> onClientRead(outgoingHandler, buffer, client.socket(), datastream),
+                habbo_server, buffer -> onServerRead(incomingHandler, buffer, datastream),
+                () -> {
+                    if (DEBUG) System.out.println("abortclient");
+                    outgoingHandler.close();
+                    incomingHandler.close();
+                    if (datastream[0]) {
+                        setState(State.NOT_CONNECTED);
+                        outHandler = null;
+                        inHandler = null;
+                    }
+                }
+        );
+        // closing a registered channel doesn't wake up the selector, so a failed writer closes the session itself
+        outgoingHandler.setWriteFailureListener(session::close);
+        incomingHandler.setWriteFailureListener(session::close);
+    }
+    private void onClientRead(OutgoingHandler handler, byte[] buffer, Socket client, boolean[] datastream) throws IOException {
+        handler.act(buffer);
+        if (!datastream[0] && handler.isDataStream())	{
+            clientHostAndPort = client.getLocalAddress().getHostAddress() + ":" + client.getPort();
+            if (DEBUG) System.out.println(clientHostAndPort);
+            datastream[0] = true;
+            setState(State.CONNECTED);
+            onConnect();
+
+            outHandler = handler;
+        }
+    }
+    private void onServerRead(IncomingHandler handler, byte[] buffer, boolean[] datastream) throws IOException {
+        if (!handler.isDataStream() && datastream[0]) {
+            handler.setAsDataStream();
+            inHandler = handler;
         }
+        handler.act(buffer);
+    }
+    private void onConnect()	{
+        synchronized (proxyLock) {
+            generation++;
+            if (hostRedirected)	{
+                removeFromHosts();
+            }
 
-        clearAllProxies();
+            clearAllProxies();
+        }
     }
     public void abort()	{
-        if (hostRedirected)	{
-            removeFromHosts();
-        }
+        synchronized (proxyLock) {
+            generation++;
+            if (hostRedirected)	{
+                removeFromHosts();
+            }
 
-        port.clear();
-        input_domain.clear();
-        actual_domain.clear();
-        realProxyIndex = -1;
+            port.clear();
+            input_domain.clear();
+            actual_domain.clear();
+            realProxyIndex = -1;
+        }
 
         setState(State.NOT_CONNECTED);
-        clearAllProxies();
+        synchronized (proxyLock) {
+            clearAllProxies();
+        }
     }
 
+    // proxyLock must be held for these
     private void clearAllProxies() {
         closeAllProxies(-1);
         proxy.clear();
@@ -395,26 +497,14 @@ public class HConnection {
         }
     }
 
-    private void addToHosts() {
-        List<String> linesTemp = new ArrayList<>();
-        for (int i = 0; i < input_domain.size(); i++) {
-            if (actual_domain.get(i) != null) {
-                linesTemp.add(("127.0.0." + (i+1)) + " " + input_domain.get(i));
-            }
-        }
-
-        String[] lines = new String[linesTemp.size()];
-        for (int i = 0; i < linesTemp.size(); i++) {
-            lines[i] = linesTemp.get(i);
-        }
-        hostsReplacer.addRedirect(lines);
-        hostRedirected = true;
+    private String redirectLine(int i) {
+        return ("127.0.0." + (i+1)) + " " + input_domain.get(i);
     }
     private void removeFromHosts(){
         List<String> linesTemp = new ArrayList<>();
         for (int i = 0; i < input_domain.size(); i++) {
             if (actual_domain.get(i) != null) {
-                linesTemp.add(("127.0.0." + (i+1)) + " " + input_domain.get(i));
+                linesTemp.add(redirectLine(i));
             }
         }
 
@@ -438,6 +528,14 @@ public class HConnection {
 
             State buffer = this.state;
             this.state = state;
+            if (state != State.WAITING_FOR_CLIENT && upstreamPool != null) {
+                upstreamPool.close();
+                upstreamPool = null;
+            }
+            if (state != State.WAITING_FOR_CLIENT && state != State.CONNECTED) {
+                // the polling threads stop by themselves on a state change, selector sessions don't
+                nioEngine.closeAll();
+            }
             for (StateChangeListener listener : stateChangeListeners) {
                 listener.stateChanged(buffer, state);
             }
@@ -462,6 +560,34 @@ public class HConnection {
         ((List<TrafficListener>)trafficListeners[2]).remove(listener);
     }
 
+    /**
+     * Gets called after the order 1 listeners, the packet continues once the listener calls onDone
+     */
+    public void addAsyncTrafficListener(AsyncTrafficListener listener) {
+        ((List<AsyncTrafficListener>)trafficListeners[3]).add(listener);
+    }
+    public void removeAsyncTrafficListener(AsyncTrafficListener listener) {
+        ((List<AsyncTrafficListener>)trafficListeners[3]).remove(listener);
+    }
+
+    /**
+     * Hand packets to the async listeners (extensions) without waiting for the previous packet to be done,
+     * they still get forwarded in order. Takes effect on the next connection
+     */
+    public void setPipelinedInterception(boolean enabled) {
+        pipelinedInterception = enabled;
+    }
+    public boolean isPipelinedInterception() {
+        return pipelinedInterception;
+    }
+
+    public void addResolveFailureListener(ResolveFailureListener listener) {
+        resolveFailureListeners.add(listener);
+    }
+    public void removeResolveFailureListener(ResolveFailureListener listener) {
+        resolveFailureListeners.remove(listener);
+    }
+
     public void addStateChangeListener(StateChangeListener listener) {
         stateChangeListeners.add(listener);
     }
@@ -485,25 +611,94 @@ public class HConnection {
 
     public boolean sendToClient(HPacket message) {
         if (inHandler == null) return false;
-        inHandler.sendToStream(message.toBytes());
-        return true;
+        return inHandler.sendToStream(message.toBytes());
     }
     public boolean sendToServer(HPacket message) {
         if (outHandler == null) return false;
-        outHandler.sendToStream(message.toBytes());
-        return true;
+        return outHandler.sendToStream(message.toBytes());
     }
 
-    public void sendToClientAsync(HPacket message) {
-        synchronized (sendToClientAsyncQueue) {
-            sendToClientAsyncQueue.add(message);
+    // the async queues only hand over the next packet once the writer caught up,
+    // so a slow peer fills up the bounded queue instead of the writer's
+    private boolean sendQueued(HMessage.Side side, HPacket message) {
+        Handler handler = side == HMessage.Side.TOCLIENT ? inHandler : outHandler;
+        if (handler == null) return false;
+        try {
+            handler.awaitWriteBacklog(MAX_WRITE_BACKLOG);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
         }
+        return handler.sendToStream(message.toBytes());
+    }
 
+    /**
+     * @return false if the packet got dropped because the queue is full, see setAsyncOverflowPolicy
+     */
+    public boolean sendToClientAsync(HPacket message) {
+        return sendToClientAsyncQueue.add(message);
     }
-    public void sendToServerAsync(HPacket message) {
-        synchronized (sendToServerAsyncQueue) {
-            sendToServerAsyncQueue.add(message);
-        }
+    public boolean sendToServerAsync(HPacket message) {
+        return sendToServerAsyncQueue.add(message);
+    }
+
+    /**
+     * Like sendToClientAsync, but never waits for space in the queue (a full queue drops the packet),
+     * for threads that must not be held up
+     * @return false if the packet got dropped
+     */
+    public boolean offerToClientAsync(HPacket message) {
+        return sendToClientAsyncQueue.offer(message);
+    }
+    public boolean offerToServerAsync(HPacket message) {
+        return sendToServerAsyncQueue.offer(message);
+    }
+
+    /**
+     * @return the amount of packets that got queued
+     */
+    public int sendToClientAsync(List<HPacket> messages) {
+        return sendToClientAsyncQueue.addAll(messages);
+    }
+    public int sendToServerAsync(List<HPacket> messages) {
+        return sendToServerAsyncQueue.addAll(messages);
+    }
+
+    /**
+     * What to do when a burst of async packets fills up the queue, BLOCK by default
+     */
+    public void setAsyncOverflowPolicy(AsyncPacketQueue.OverflowPolicy policy) {
+        sendToClientAsyncQueue.setOverflowPolicy(policy);
+        sendToServerAsyncQueue.setOverflowPolicy(policy);
+    }
+
+    public AsyncPacketQueue getClientAsyncQueue() {
+        return sendToClientAsyncQueue;
+    }
+    public AsyncPacketQueue getServerAsyncQueue() {
+        return sendToServerAsyncQueue;
+    }
+
+    /**
+     * Forward traffic on a single selector thread instead of 2 polling threads per connection,
+     * takes effect on the next start()
+     */
+    public void setNioEngineEnabled(boolean enabled) {
+        useNioEngine = enabled;
+    }
+    public boolean isNioEngineEnabled() {
+        return useNioEngine;
+    }
+
+    /**
+     * Connect to the prepared hotels while waiting for the client, so the client doesn't have to wait
+     * for the connection with the real server once it's accepted. Takes effect on the next start()
+     */
+    public void setUpstreamPreconnectEnabled(boolean enabled) {
+        preconnect = enabled;
+    }
+    public boolean isUpstreamPreconnectEnabled() {
+        return preconnect;
     }
 
     public String getClientHostAndPort() {
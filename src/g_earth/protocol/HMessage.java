@@ -19,6 +19,13 @@ public class HMessage implements StringifyAble {
         constructFromString(fromString);
     }
 
+    /**
+     * Reads the binary form (see appendBinary) from the given position until the end of the container
+     */
+    public HMessage(HPacket container, int offset) {
+        constructFromBinary(container, offset);
+    }
+
     public HMessage(HPacket packet, Side side, int index) {
         this.side = side;
         this.hPacket = packet;
@@ -66,6 +73,38 @@ public class HMessage implements StringifyAble {
         this.hPacket = p;
     }
 
+    /**
+     * Binary form for the extension protocol, avoids the string conversions of stringify():
+     * byte flags (1 = blocked, 2 = packet edited), int index, byte side (0 = to client, 1 = to server), packet bytes
+     */
+    public void appendBinary(HPacketBuilder builder) {
+        builder.appendByte((byte)((isBlocked ? 1 : 0) | (hPacket.isReplaced() ? 2 : 0)))
+                .appendInt(index)
+                .appendByte(side == Side.TOCLIENT ? (byte)0 : (byte)1)
+                .appendBytes(hPacket.toBytes(), 0, hPacket.getBytesLength());
+    }
+
+    public void constructFromBinary(HPacket container, int offset) {
+        byte flags = container.readByte(offset);
+        this.isBlocked = (flags & 1) != 0;
+        this.index = container.readInteger(offset + 1);
+        this.side = container.readByte(offset + 5) == 0 ? Side.TOCLIENT : Side.TOSERVER;
+
+        int length = container.getBytesLength() - (offset + 6);
+        HPacket p = new HPacket(container.readBytes(length, offset + 6), 0, length);
+        p.setReplaced((flags & 2) != 0);
+        this.hPacket = p;
+    }
+
+    /**
+     * Like equals, with the binary form at the given position, without parsing it
+     */
+    public boolean equalsBinary(HPacket container, int offset) {
+        return index == container.readInteger(offset + 1)
+                && side == (container.readByte(offset + 5) == 0 ? Side.TOCLIENT : Side.TOSERVER)
+                && hPacket.equalsRange(container, offset + 6);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof HMessage)) return false;
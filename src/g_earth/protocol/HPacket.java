@@ -2,11 +2,14 @@ package g_earth.protocol;
 
 import g_earth.misc.StringifyAble;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class HPacket implements StringifyAble {
     // te komen: toExpressions (+impl. expressies)
@@ -14,14 +17,48 @@ public class HPacket implements StringifyAble {
     private byte[] packetInBytes;
     private int readIndex = 6;
 
+    // a view only covers packetInBytes[packetOffset, packetOffset + packetLength) of an array it doesn't own,
+    // otherwise packetOffset is 0 and packetLength equals packetInBytes.length
+    private int packetOffset = 0;
+    private int packetLength;
+    private boolean isView = false;
+
+    // edit journal: string replacements which haven't been applied to packetInBytes yet,
+    // sorted on position (relative to packetOffset) and not overlapping
+    private static class StringEdit {
+        final int index;
+        final int removeLength;
+        final byte[] insert;
+
+        StringEdit(int index, int removeLength, byte[] insert) {
+            this.index = index;
+            this.removeLength = removeLength;
+            this.insert = insert;
+        }
+    }
+    private List<StringEdit> pendingEdits = null;
+    private int pendingEditsDelta = 0;
+
     public HPacket(byte[] packet)	{
-        packetInBytes = packet.clone();
+        setPacketBytes(packet.clone());
+    }
+
+    /**
+     * Creates a view on a packet inside a shared array without copying it,
+     * the bytes only get copied once the packet gets modified.
+     * The caller must not change that part of the array afterwards.
+     */
+    public HPacket(byte[] array, int offset, int length) {
+        packetInBytes = array;
+        packetOffset = offset;
+        packetLength = length;
+        isView = true;
     }
     public HPacket(String packet)	{
-        packetInBytes = fromStringToBytes(fromExpressionToString(packet));
+        setPacketBytes(fromStringToBytes(fromExpressionToString(packet)));
     }
     public HPacket(int header) {
-        packetInBytes = new byte[]{0,0,0,2,0,0};
+        setPacketBytes(new byte[]{0,0,0,2,0,0});
         replaceUShort(4, header);
         isEdited = false;
     }
@@ -31,9 +68,49 @@ public class HPacket implements StringifyAble {
         isEdited = false;
     }
 
+    private void setPacketBytes(byte[] bytes) {
+        packetInBytes = bytes;
+        packetOffset = 0;
+        packetLength = bytes.length;
+        isView = false;
+    }
+
+    // applies the edit journal in one pass, needed before reading or changing packetInBytes
+    private void applyEdits() {
+        if (pendingEdits == null) return;
+
+        byte[] result = new byte[packetLength + pendingEditsDelta];
+        int from = 0;
+        int to = 0;
+        for (StringEdit edit : pendingEdits) {
+            System.arraycopy(packetInBytes, packetOffset + from, result, to, edit.index - from);
+            to += edit.index - from;
+            System.arraycopy(edit.insert, 0, result, to, edit.insert.length);
+            to += edit.insert.length;
+            from = edit.index + edit.removeLength;
+        }
+        System.arraycopy(packetInBytes, packetOffset + from, result, to, packetLength - from);
+
+        boolean lengthChanged = pendingEditsDelta != 0;
+        pendingEdits = null;
+        pendingEditsDelta = 0;
+        setPacketBytes(result);
+        if (lengthChanged) fixLength();
+    }
+
+    // copy-on-write for views, must be called before changing packetInBytes
+    private void ensureOwned() {
+        applyEdits();
+        if (isView) {
+            setPacketBytes(Arrays.copyOfRange(packetInBytes, packetOffset, packetOffset + packetLength));
+        }
+    }
+
     public String toString()	{
+        applyEdits();
         String teststring = "";
-        for (byte x : packetInBytes)	{
+        for (int i = 0; i < packetLength; i++)	{
+            byte x = packetInBytes[packetOffset + i];
             if ((x < 32 && x >= 0) || x < -96 || x == 93 || x == 91 || x == 125 || x == 123 || x == 127 )
                 teststring+="["+((((int)x) + 256 ) % 256)+"]";
             else
@@ -189,27 +266,44 @@ public class HPacket implements StringifyAble {
         int indexbuffer = readIndex;
         readIndex = 6;
 
-        String[] split = structure.split(",");
-
-        for (int i = 0; i < split.length; i++) {
-            String s = split[i];
-
-            if (s.equals("s")) {
-                if (readIndex + 2 > getBytesLength() || readUshort(readIndex) + 2 + readIndex > getBytesLength()) return false;
-                readString();
-            }
-            else if (s.equals("i")) {
-                if (readIndex + 4 > getBytesLength()) return false;
-                readInteger();
-            }
-            else if (s.equals("u")) {
-                if (readIndex + 2 > getBytesLength()) return false;
-                readUshort();
-            }
-            else if (s.equals("b")) {
-                if (readIndex + 1 > getBytesLength()) return false;
-                readBoolean();
+        // walks the structure in place, no need to split it or to decode the fields
+        int i = 0;
+        while (i < structure.length()) {
+            int end = structure.indexOf(',', i);
+            if (end == -1) end = structure.length();
+
+            if (end - i == 1) {
+                char s = structure.charAt(i);
+                if (s == 's') {
+                    if (readIndex + 2 > getBytesLength() || readUshort(readIndex) + 2 + readIndex > getBytesLength()) {
+                        readIndex = indexbuffer;
+                        return false;
+                    }
+                    readIndex += 2 + readUshort(readIndex);
+                }
+                else if (s == 'i') {
+                    if (readIndex + 4 > getBytesLength()) {
+                        readIndex = indexbuffer;
+                        return false;
+                    }
+                    readIndex += 4;
+                }
+                else if (s == 'u') {
+                    if (readIndex + 2 > getBytesLength()) {
+                        readIndex = indexbuffer;
+                        return false;
+                    }
+                    readIndex += 2;
+                }
+                else if (s == 'b') {
+                    if (readIndex + 1 > getBytesLength()) {
+                        readIndex = indexbuffer;
+                        return false;
+                    }
+                    readIndex += 1;
+                }
             }
+            i = end + 1;
         }
 
         boolean result = (isEOF() == 1);
@@ -224,9 +318,21 @@ public class HPacket implements StringifyAble {
     }
 
     public byte[] toBytes()		{
+        applyEdits();
+        if (isView && (packetOffset != 0 || packetLength != packetInBytes.length)) {
+            ensureOwned();
+        }
         return packetInBytes;
     }
 
+    /**
+     * Writes the packet without copying it first, also for views
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        applyEdits();
+        out.write(packetInBytes, packetOffset, packetLength);
+    }
+
     public int getReadIndex()	{
         return readIndex;
     }
@@ -239,7 +345,7 @@ public class HPacket implements StringifyAble {
 
     public boolean isCorrupted()	{
 
-        if (packetInBytes.length >= 6)	{
+        if (packetLength >= 6)	{
             if (length() == getBytesLength() - 4)	{
                 return false;
             }
@@ -249,29 +355,30 @@ public class HPacket implements StringifyAble {
 
     public byte readByte()	{
         readIndex++;
-        return packetInBytes[readIndex - 1];
+        return readByte(readIndex - 1);
     }
     public byte readByte(int index)	{
-        return packetInBytes[index];
+        applyEdits();
+        return packetInBytes[packetOffset + index];
     }
 
     public short readShort()	{
-        byte[] btarray = new byte[]{packetInBytes[readIndex], packetInBytes[readIndex + 1]};
+        short result = readShort(readIndex);
         readIndex +=2;
-        return java.nio.ByteBuffer.wrap(btarray).getShort();
+        return result;
     }
     public short readShort(int index)	{
-        byte[] btarray = new byte[]{packetInBytes[index], packetInBytes[index + 1]};
-        return java.nio.ByteBuffer.wrap(btarray).getShort();
+        return (short) readUshort(index);
     }
     public int readUshort() {
-        byte[] btarray = new byte[]{0, 0, packetInBytes[readIndex], packetInBytes[readIndex + 1]};
+        int result = readUshort(readIndex);
         readIndex +=2;
-        return java.nio.ByteBuffer.wrap(btarray).getInt();
+        return result;
     }
     public int readUshort(int index) {
-        byte[] btarray = new byte[]{0, 0, packetInBytes[index], packetInBytes[index + 1]};
-        return java.nio.ByteBuffer.wrap(btarray).getInt();
+        applyEdits();
+        index += packetOffset;
+        return ((packetInBytes[index] & 0xFF) << 8) | (packetInBytes[index + 1] & 0xFF);
     }
 
     public int headerId()	{
@@ -279,45 +386,45 @@ public class HPacket implements StringifyAble {
     }
 
     public int readInteger(){
-        byte[] btarray = new byte[]{packetInBytes[readIndex], packetInBytes[readIndex + 1], packetInBytes[readIndex + 2], packetInBytes[readIndex + 3]};
+        int result = readInteger(readIndex);
         readIndex +=4;
-        return java.nio.ByteBuffer.wrap(btarray).getInt();
+        return result;
     }
     public int readInteger(int index)	{
-        byte[] btarray = new byte[]{packetInBytes[index], packetInBytes[index + 1], packetInBytes[index + 2], packetInBytes[index + 3]};
-        return java.nio.ByteBuffer.wrap(btarray).getInt();
+        applyEdits();
+        index += packetOffset;
+        return ((packetInBytes[index] & 0xFF) << 24) |
+                ((packetInBytes[index + 1] & 0xFF) << 16) |
+                ((packetInBytes[index + 2] & 0xFF) << 8) |
+                (packetInBytes[index + 3] & 0xFF);
     }
 
     public int length()	{
         return readInteger(0);
     }
     public int getBytesLength()	{
-        return packetInBytes.length;
+        return packetLength + pendingEditsDelta;
     }
 
     public byte[] readBytes(int length)	{
-        byte[] newbytes = new byte[length];
-        for (int i = 0; i < (length); i++)	{
-            newbytes[i] = packetInBytes[i+ readIndex];
-        }
+        byte[] newbytes = readBytes(length, readIndex);
         readIndex +=length;
         return newbytes;
     }
     public byte[] readBytes(int length, int index)	{
+        applyEdits();
         byte[] newbytes = new byte[length];
-        for (int i = 0; i < (length); i++)	{
-            newbytes[i] = packetInBytes[i+index];
-        }
+        System.arraycopy(packetInBytes, packetOffset + index, newbytes, 0, length);
         return newbytes;
     }
 
     public long readLong()	{
-        byte[] btarray = readBytes(8);
-        return java.nio.ByteBuffer.wrap(btarray).getLong();
+        long result = readLong(readIndex);
+        readIndex +=8;
+        return result;
     }
     public long readLong(int index)	{
-        byte[] btarray = readBytes(8, index);
-        return java.nio.ByteBuffer.wrap(btarray).getLong();
+        return ((long)readInteger(index) << 32) | (readInteger(index + 4) & 0xFFFFFFFFL);
     }
 
     public String readString()	{
@@ -333,13 +440,8 @@ public class HPacket implements StringifyAble {
     }
 
     private String readString(int index, int length) {
-        byte[] x = new byte[length];
-        for (int i = 0; i < x.length; i++)	{ x[i] = readByte(index); index++;	}
-        try {
-            return new String(x, "ISO-8859-1");
-        } catch (UnsupportedEncodingException e) {	}
-
-        return null;
+        applyEdits();
+        return new String(packetInBytes, packetOffset + index, length, StandardCharsets.ISO_8859_1);
     }
 
     public String readLongString()	{
@@ -364,24 +466,25 @@ public class HPacket implements StringifyAble {
 
     public HPacket replaceBoolean(int index, boolean b) {
         isEdited = true;
+        ensureOwned();
         packetInBytes[index] = b ? (byte)1 : (byte)0;
         return this;
     }
     public HPacket replaceInt(int index, int i) {
         isEdited = true;
-        ByteBuffer b = ByteBuffer.allocate(4).putInt(i);
-        for (int j = 0; j < 4; j++) {
-            packetInBytes[index + j] = b.array()[j];
-        }
+        ensureOwned();
+        writeInt(index, i);
         return this;
     }
     public HPacket replaceByte(int index, byte b) {
         isEdited = true;
+        ensureOwned();
         packetInBytes[index] = b;
         return this;
     }
     public HPacket replaceBytes(int index, byte[] bytes) {
         isEdited = true;
+        ensureOwned();
         int i = 0;
         while (index + i < packetInBytes.length && i < bytes.length) {
             replaceByte(index + i, bytes[i]);
@@ -396,57 +499,93 @@ public class HPacket implements StringifyAble {
     }
     public HPacket replaceUShort(int index, int ushort) {
         isEdited = true;
-        ByteBuffer b = ByteBuffer.allocate(4).putInt(ushort);
-        packetInBytes[index] = b.array()[2];
-        packetInBytes[index + 1] = b.array()[3];
+        ensureOwned();
+        writeShort(index, ushort);
         return this;
     }
     public HPacket replaceShort(int index, short s) {
         isEdited = true;
-        ByteBuffer b = ByteBuffer.allocate(2).putShort(s);
-        packetInBytes[index] = b.array()[0];
-        packetInBytes[index + 1] = b.array()[1];
+        ensureOwned();
+        writeShort(index, s);
         return this;
     }
+    /**
+     * Replacements get recorded in an edit journal, which gets applied in one pass once the packet is read or sent.
+     * Replacing multiple strings in a big packet doesn't shift the whole packet for every string that way.
+     */
     public HPacket replaceString(int index, String s) {
         isEdited = true;
-        byte[] sbytes = s.getBytes(StandardCharsets.ISO_8859_1);
-        int mover = s.length() - readUshort(index);
 
-        if (mover != 0) {
-            byte[] newPacket = Arrays.copyOf(packetInBytes, packetInBytes.length + mover);
+        int journalIndex = toJournalIndex(index);
+        if (journalIndex == -1 || !fitsInJournal(journalIndex)) {
+            applyEdits();
+            journalIndex = index;
+        }
+        recordStringEdit(journalIndex, s);
+        return this;
+    }
 
-            if (mover > 0) {
-                int i = newPacket.length - 1;
-                while (i > index + mover + 2) {
-                    newPacket[i] = packetInBytes[i - mover];
-                    i--;
-                }
-            }
-            else {
-                int i = index + 2 + s.length();
-                while (i < newPacket.length) {
-                    newPacket[i] = packetInBytes[i - mover];
-                    i++;
-                }
-            }
+    // position in packetInBytes (relative to packetOffset) of a position in the edited packet,
+    // -1 if it falls inside an edit
+    private int toJournalIndex(int index) {
+        if (pendingEdits == null) return index;
+
+        int shift = 0;
+        for (StringEdit edit : pendingEdits) {
+            int editStart = edit.index + shift;
+            if (index < editStart) break;
+            if (index < editStart + edit.insert.length) return -1;
+            shift += edit.insert.length - edit.removeLength;
+        }
+        return index - shift;
+    }
 
-            packetInBytes = newPacket;
-            fixLength();
+    // the string at journalIndex doesn't overlap with a pending edit
+    private boolean fitsInJournal(int journalIndex) {
+        if (pendingEdits == null) return true;
+
+        int end = journalIndex + 2 + journalUshort(journalIndex);
+        for (StringEdit edit : pendingEdits) {
+            if (edit.index + edit.removeLength > journalIndex && edit.index < end) return false;
         }
+        return true;
+    }
+
+    private int journalUshort(int index) {
+        index += packetOffset;
+        return ((packetInBytes[index] & 0xFF) << 8) | (packetInBytes[index + 1] & 0xFF);
+    }
+
+    private void recordStringEdit(int journalIndex, String s) {
+        byte[] sbytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] insert = new byte[2 + sbytes.length];
+        insert[0] = (byte)(s.length() >>> 8);
+        insert[1] = (byte)s.length();
+        System.arraycopy(sbytes, 0, insert, 2, sbytes.length);
+
+        StringEdit edit = new StringEdit(journalIndex, 2 + journalUshort(journalIndex), insert);
+        if (pendingEdits == null) pendingEdits = new ArrayList<>();
+        int i = pendingEdits.size();
+        while (i > 0 && pendingEdits.get(i - 1).index > journalIndex) i--;
+        pendingEdits.add(i, edit);
+        pendingEditsDelta += insert.length - edit.removeLength;
+    }
 
-        replaceUShort(index, s.length());
+    private boolean isStringAt(int index, String s) {
+        if (journalUshort(index) != s.length()) return false;
+        index += packetOffset + 2;
         for (int i = 0; i < s.length(); i++) {
-            packetInBytes[index + 2 + i] = sbytes[i];
+            if ((char)(packetInBytes[index + i] & 0xFF) != s.charAt(i)) return false;
         }
-        return this;
+        return true;
     }
 
     //returns if done r not
     public boolean replaceFirstString(String oldS, String newS) {
+        applyEdits();
         int i = 6;
-        while (i < packetInBytes.length - 1 - oldS.length()) {
-            if (readUshort(i) == oldS.length() && readString(i).equals(oldS)) {
+        while (i < packetLength - 1 - oldS.length()) {
+            if (isStringAt(i, oldS)) {
                 replaceString(i, newS);
                 return true;
             }
@@ -454,32 +593,47 @@ public class HPacket implements StringifyAble {
         }
         return false;
     }
+
+    /**
+     * Replaces the occurrences in a single scan from left to right
+     */
     public HPacket replaceAllString(String oldS, String newS) {
-        while (replaceFirstString(oldS, newS)) {}
+        applyEdits();
+        int i = 6;
+        while (i < packetLength - 1 - oldS.length()) {
+            if (isStringAt(i, oldS)) {
+                isEdited = true;
+                recordStringEdit(i, newS);
+                i += 2 + oldS.length();
+            }
+            else {
+                i++;
+            }
+        }
         return this;
     }
 
 
     public HPacket appendInt(int i) {
         isEdited = true;
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length + 4);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(4).putInt(i);
-        for (int j = 0; j < 4; j++) {
-            packetInBytes[packetInBytes.length - 4 + j] = byteBuffer.array()[j];
-        }
+        ensureOwned();
+        setPacketBytes(Arrays.copyOf(packetInBytes, packetInBytes.length + 4));
+        writeInt(packetInBytes.length - 4, i);
         fixLength();
         return this;
     }
     public HPacket appendByte(byte b) {
         isEdited = true;
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length + 1);
+        ensureOwned();
+        setPacketBytes(Arrays.copyOf(packetInBytes, packetInBytes.length + 1));
         packetInBytes[packetInBytes.length - 1] = b;
         fixLength();
         return this;
     }
     public HPacket appendBytes(byte[] bytes) {
         isEdited = true;
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length + bytes.length);
+        ensureOwned();
+        setPacketBytes(Arrays.copyOf(packetInBytes, packetInBytes.length + bytes.length));
         for (int i = 0; i < bytes.length; i++) {
             packetInBytes[packetInBytes.length - bytes.length + i] = bytes[i];
         }
@@ -493,21 +647,17 @@ public class HPacket implements StringifyAble {
     }
     public HPacket appendUShort(int ushort) {
         isEdited = true;
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length + 2);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(4).putInt(ushort);
-        for (int j = 2; j < 4; j++) {
-            packetInBytes[packetInBytes.length - 4 + j] = byteBuffer.array()[j];
-        }
+        ensureOwned();
+        setPacketBytes(Arrays.copyOf(packetInBytes, packetInBytes.length + 2));
+        writeShort(packetInBytes.length - 2, ushort);
         fixLength();
         return this;
     }
     public HPacket appendShort(short s) {
         isEdited = true;
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length + 2);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(2).putShort(s);
-        for (int j = 0; j < 2; j++) {
-            packetInBytes[packetInBytes.length - 2 + j] = byteBuffer.array()[j];
-        }
+        ensureOwned();
+        setPacketBytes(Arrays.copyOf(packetInBytes, packetInBytes.length + 2));
+        writeShort(packetInBytes.length - 2, s);
         fixLength();
         return this;
     }
@@ -525,25 +675,41 @@ public class HPacket implements StringifyAble {
     }
 
     public HPacket removeFrom(int index) {
-        return removeRange(index, packetInBytes.length - index);
+        return removeRange(index, getBytesLength() - index);
     }
     public HPacket removeRange(int index, int length) {
         isEdited = true;
+        ensureOwned();
         for (int i = index; i < packetInBytes.length - length; i++) {
             packetInBytes[i] = packetInBytes[i + length];
         }
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length - length);
+        setPacketBytes(Arrays.copyOf(packetInBytes, packetInBytes.length - length));
         fixLength();
         return this;
     }
 
+    // big-endian writes into an owned packetInBytes
+    private void writeShort(int index, int value) {
+        packetInBytes[index] = (byte)(value >>> 8);
+        packetInBytes[index + 1] = (byte)value;
+    }
+    private void writeInt(int index, int value) {
+        packetInBytes[index] = (byte)(value >>> 24);
+        packetInBytes[index + 1] = (byte)(value >>> 16);
+        packetInBytes[index + 2] = (byte)(value >>> 8);
+        packetInBytes[index + 3] = (byte)value;
+    }
+
     public boolean isReplaced() {
         return isEdited;
     }
+    void setReplaced(boolean replaced) {
+        isEdited = replaced;
+    }
 
     public void fixLength() {
         boolean remember = isEdited;
-        replaceInt(0, packetInBytes.length - 4);
+        replaceInt(0, getBytesLength() - 4);
         isEdited = remember;
     }
 
@@ -554,6 +720,7 @@ public class HPacket implements StringifyAble {
      */
     public String toExpression() {
         if (isCorrupted()) return "";
+        ensureOwned(); // plain array access below
 
         boolean[] mask = new boolean[packetInBytes.length];
         String[] resultTest = new String[packetInBytes.length];
@@ -822,14 +989,15 @@ public class HPacket implements StringifyAble {
     @Override
     public String stringify() {
         String st = null;
-        st = (isEdited ? "1" : "0") + new String(packetInBytes, StandardCharsets.ISO_8859_1);
+        applyEdits();
+        st = (isEdited ? "1" : "0") + new String(packetInBytes, packetOffset, packetLength, StandardCharsets.ISO_8859_1);
         return st;
     }
 
     @Override
     public void constructFromString(String str) {
         this.isEdited = str.charAt(0) == '1';
-        packetInBytes = str.substring(1).getBytes(StandardCharsets.ISO_8859_1);
+        setPacketBytes(str.substring(1).getBytes(StandardCharsets.ISO_8859_1));
     }
 
     @Override
@@ -837,7 +1005,29 @@ public class HPacket implements StringifyAble {
         if (!(object instanceof HPacket)) return false;
 
         HPacket packet2 = (HPacket) object;
-        return Arrays.equals(packetInBytes, packet2.packetInBytes) && (isEdited == packet2.isEdited);
+        applyEdits();
+        packet2.applyEdits();
+        if (packetLength != packet2.packetLength || isEdited != packet2.isEdited) return false;
+
+        for (int i = 0; i < packetLength; i++) {
+            if (packetInBytes[packetOffset + i] != packet2.packetInBytes[packet2.packetOffset + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Like equals, with a packet that runs from the given position until the end of the container,
+     * without copying it out first
+     */
+    boolean equalsRange(HPacket container, int offset) {
+        applyEdits();
+        container.applyEdits();
+        if (packetLength != container.packetLength - offset || isEdited) return false;
+
+        for (int i = 0; i < packetLength; i++) {
+            if (packetInBytes[packetOffset + i] != container.packetInBytes[container.packetOffset + offset + i]) return false;
+        }
+        return true;
     }
 
     public static void main(String[] args) {
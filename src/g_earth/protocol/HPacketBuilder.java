@@ -0,0 +1,114 @@
+package g_earth.protocol;
+
+import java.util.Arrays;
+
+/**
+ * Builds a packet field by field in a growing buffer, the length header only gets written in build().
+ * Use this instead of the HPacket append methods for packets with a lot of fields or big fields,
+ * those copy the whole packet on every append.
+ */
+public class HPacketBuilder {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private byte[] bytes;
+    private int size = 6;
+    private boolean isBuilt = false;
+
+    public HPacketBuilder(int header) {
+        this(header, DEFAULT_CAPACITY);
+    }
+    public HPacketBuilder(int header, int initialCapacity) {
+        bytes = new byte[Math.max(6, initialCapacity)];
+        writeShort(4, header);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (isBuilt) {
+            // the built packet is a view on the current array, don't touch it anymore
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length, size + extra));
+            isBuilt = false;
+        }
+        else if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+
+    private void writeShort(int index, int value) {
+        bytes[index] = (byte)(value >>> 8);
+        bytes[index + 1] = (byte)value;
+    }
+    private void writeInt(int index, int value) {
+        bytes[index] = (byte)(value >>> 24);
+        bytes[index + 1] = (byte)(value >>> 16);
+        bytes[index + 2] = (byte)(value >>> 8);
+        bytes[index + 3] = (byte)value;
+    }
+
+    public HPacketBuilder appendInt(int i) {
+        ensureCapacity(4);
+        writeInt(size, i);
+        size += 4;
+        return this;
+    }
+    public HPacketBuilder appendByte(byte b) {
+        ensureCapacity(1);
+        bytes[size++] = b;
+        return this;
+    }
+    public HPacketBuilder appendBytes(byte[] bytes) {
+        return appendBytes(bytes, 0, bytes.length);
+    }
+    public HPacketBuilder appendBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, this.bytes, size, length);
+        size += length;
+        return this;
+    }
+    public HPacketBuilder appendBoolean(boolean b) {
+        return appendByte((byte)(b ? 1 : 0));
+    }
+    public HPacketBuilder appendUShort(int ushort) {
+        ensureCapacity(2);
+        writeShort(size, ushort);
+        size += 2;
+        return this;
+    }
+    public HPacketBuilder appendShort(short s) {
+        return appendUShort(s);
+    }
+    public HPacketBuilder appendString(String s) {
+        appendUShort(s.length());
+        appendChars(s);
+        return this;
+    }
+    public HPacketBuilder appendLongString(String s) {
+        appendInt(s.length());
+        appendChars(s);
+        return this;
+    }
+
+    // ISO-8859-1 encoding without the intermediate byte array
+    private void appendChars(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            bytes[size + i] = c <= 0xFF ? (byte)c : (byte)'?';
+        }
+        size += s.length();
+    }
+
+    public int getBytesLength() {
+        return size;
+    }
+
+    /**
+     * The packet shares the buffer of this builder, appending afterwards is possible but will copy the buffer
+     */
+    public HPacket build() {
+        ensureCapacity(0);
+        writeInt(0, size - 4);
+        isBuilt = true;
+        return new HPacket(bytes, 0, size);
+    }
+}
@@ -0,0 +1,85 @@
+package g_earth.protocol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Resolves the hotel hosts in the background, each on its own, and remembers their addresses for a while.
+ * A lookup that takes longer than TIMEOUT gets retried next to the running one (the first answer wins),
+ * a host fails after MAX_ATTEMPTS timed out lookups, or right away if it doesn't exist.
+ */
+class HostResolver {
+
+    private static final long TIMEOUT = 3000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long TTL = 5 * 60 * 1000;
+
+    private static class Resolved {
+        final String address;
+        final long expires;
+
+        Resolved(String address, long expires) {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+
+    private static final Map<String, Resolved> cache = new ConcurrentHashMap<>();
+    private static final ExecutorService lookups = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "G-Earth host resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "G-Earth host resolver timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @return the ip address of the host, completes exceptionally with an UnknownHostException if the host
+     *         doesn't exist or a TimeoutException if it couldn't be resolved in time
+     */
+    static CompletableFuture<String> resolve(String host) {
+        Resolved resolved = cache.get(host);
+        if (resolved != null && resolved.expires > System.currentTimeMillis()) {
+            return CompletableFuture.completedFuture(resolved.address);
+        }
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+        attempt(host, result, 1);
+        return result;
+    }
+
+    private static void attempt(String host, CompletableFuture<String> result, int attempt) {
+        lookups.execute(() -> {
+            try {
+                result.complete(lookup(host));
+            } catch (UnknownHostException e) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        timeouts.schedule(() -> {
+            if (result.isDone()) return;
+            if (attempt < MAX_ATTEMPTS) {
+                attempt(host, result, attempt + 1);
+            }
+            else {
+                result.completeExceptionally(new TimeoutException(host + " wasn't resolved after " + MAX_ATTEMPTS + " attempts"));
+            }
+        }, TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private static String lookup(String host) throws UnknownHostException {
+        InetAddress address = InetAddress.getByName(host);
+
+        // a lookup finishing after the hosts file got redirected shouldn't be remembered
+        if (!address.isLoopbackAddress()) {
+            cache.put(host, new Resolved(address.getHostAddress(), System.currentTimeMillis() + TTL));
+        }
+        return address.getHostAddress();
+    }
+}
@@ -0,0 +1,10 @@
+package g_earth.protocol;
+
+public interface ResolveFailureListener {
+
+    /**
+     * @param reason  an UnknownHostException if the host doesn't exist, a TimeoutException if it didn't resolve in time
+     */
+    void resolveFailed(String host, int port, Throwable reason);
+
+}
@@ -0,0 +1,150 @@
+package g_earth.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Keeps a connection to every prepared hotel open while waiting for the client,
+ * so an accepted client doesn't have to wait for the handshake with the real server.
+ * Hotels get added once their host is resolved.
+ *
+ * Connections that stayed unused for a while are replaced, in case the server dropped them.
+ * Everything that wasn't taken gets closed on close().
+ */
+class UpstreamPool {
+
+    private static final boolean DEBUG = false;
+    private static final long MAX_IDLE = 20000;
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final String[] hosts;
+    private final List<Integer> ports;
+    private final boolean channels;
+
+    private final Socket[] sockets;
+    private final long[] connected;
+    private volatile boolean closed = false;
+
+    /**
+     * @param ports     the port of every hotel
+     * @param channels  open the sockets through a SocketChannel (for the nio engine)
+     */
+    UpstreamPool(List<Integer> ports, boolean channels) {
+        this.ports = ports;
+        this.channels = channels;
+        hosts = new String[ports.size()];
+        sockets = new Socket[ports.size()];
+        connected = new long[ports.size()];
+    }
+
+    /**
+     * Starts keeping a connection to a hotel open
+     * @param host  its ip address
+     */
+    synchronized void add(int index, String host) {
+        if (closed || hosts[index] != null) return;
+        hosts[index] = host;
+
+        Thread thread = new Thread(() -> keepConnected(index), "G-Earth upstream pool");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return an established connection to the hotel, or null if there is none (yet)
+     */
+    synchronized Socket take(int index) {
+        Socket socket = sockets[index];
+        sockets[index] = null;
+        notifyAll();
+
+        if (socket != null && (socket.isClosed() || System.currentTimeMillis() - connected[index] > MAX_IDLE)) {
+            closeSocket(socket);
+            return null;
+        }
+        return socket;
+    }
+
+    synchronized void close() {
+        closed = true;
+        for (int i = 0; i < sockets.length; i++) {
+            if (sockets[i] != null) {
+                closeSocket(sockets[i]);
+                sockets[i] = null;
+            }
+        }
+        notifyAll();
+    }
+
+    private void keepConnected(int index) {
+        while (!closed) {
+            synchronized (this) {
+                // wait until the connection got taken or gets too old
+                while (!closed && sockets[index] != null && System.currentTimeMillis() - connected[index] < MAX_IDLE) {
+                    try {
+                        wait(Math.max(1, MAX_IDLE - (System.currentTimeMillis() - connected[index])));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+                if (sockets[index] != null) {
+                    closeSocket(sockets[index]);
+                    sockets[index] = null;
+                }
+            }
+
+            Socket socket;
+            try {
+                socket = connect(index);
+            } catch (IOException e) {
+                if (DEBUG) e.printStackTrace();
+                // the server isn't reachable right now, the client will connect the usual way
+                return;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    closeSocket(socket);
+                    return;
+                }
+                sockets[index] = socket;
+                connected[index] = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private Socket connect(int index) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(hosts[index], ports.get(index));
+        if (channels) {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.socket().connect(address, CONNECT_TIMEOUT);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel.socket();
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    private static void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
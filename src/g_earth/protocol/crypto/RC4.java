@@ -33,6 +33,8 @@ package g_earth.protocol.crypto;
  * THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -56,7 +58,8 @@ import java.util.Arrays;
  */
 public class RC4 {
 
-    private byte state[] = new byte[256];
+    // kept as ints (0 - 255), no masking needed when using an entry as index
+    private int state[] = new int[256];
     private int x;
     private int y;
 
@@ -81,7 +84,7 @@ public class RC4 {
     public RC4(byte[] key) throws NullPointerException {
 
         for (int i=0; i < 256; i++) {
-            state[i] = (byte)i;
+            state[i] = i;
         }
 
         x = 0;
@@ -90,7 +93,7 @@ public class RC4 {
         int index1 = 0;
         int index2 = 0;
 
-        byte tmp;
+        int tmp;
 
         if (key == null || key.length == 0) {
             throw new NullPointerException();
@@ -98,7 +101,7 @@ public class RC4 {
 
         for (int i=0; i < 256; i++) {
 
-            index2 = ((key[index1] & 0xff) + (state[i] & 0xff) + index2) & 0xff;
+            index2 = ((key[index1] & 0xff) + state[i] + index2) & 0xff;
 
             tmp = state[i];
             state[i] = state[index2];
@@ -111,7 +114,18 @@ public class RC4 {
 
     }
 
+    /**
+     * Initializes the class with an existing state, the state array is copied
+     */
     public RC4(byte[] state, int x, int y) {
+        this.x = x;
+        this.y = y;
+        for (int i = 0; i < 256; i++) {
+            this.state[i] = state[i] & 0xff;
+        }
+    }
+
+    private RC4(int[] state, int x, int y) {
         this.x = x;
         this.y = y;
         this.state = state;
@@ -136,7 +150,7 @@ public class RC4 {
 
         byte[] tmp = data.getBytes();
 
-        this.rc4(tmp);
+        this.rc4(tmp, 0, tmp.length, tmp, 0);
 
         return tmp;
     }
@@ -149,35 +163,102 @@ public class RC4 {
      */
     public byte[] rc4(byte[] buf) {
 
-        //int lx = this.x;
-        //int ly = this.y;
-
-        int xorIndex;
-        byte tmp;
-
         if (buf == null) {
             return null;
         }
 
         byte[] result = new byte[buf.length];
+        rc4(buf, 0, buf.length, result, 0);
+        return result;
+    }
+
+    /**
+     * RC4 encryption/decryption without allocating, src and dst may be the same array.
+     *
+     * @param src     the data to be encrypted/decrypted
+     * @param off     offset of the data in src
+     * @param len     amount of bytes to encrypt/decrypt
+     * @param dst     array to write the result to
+     * @param dstOff  offset of the result in dst
+     */
+    public void rc4(byte[] src, int off, int len, byte[] dst, int dstOff) {
 
-        for (int i=0; i < buf.length; i++) {
+        int[] state = this.state;
+        int lx = this.x;
+        int ly = this.y;
+        int tmp;
 
-            x = (x + 1) & 0xff;
-            y = ((state[x] & 0xff) + y) & 0xff;
+        for (int i=0; i < len; i++) {
+
+            lx = (lx + 1) & 0xff;
+            tmp = state[lx];
+            ly = (tmp + ly) & 0xff;
+
+            state[lx] = state[ly];
+            state[ly] = tmp;
+
+            dst[dstOff + i] = (byte)(src[off + i] ^ state[(state[lx] + tmp) & 0xff]);
+        }
+
+        this.x = lx;
+        this.y = ly;
+    }
+
+    /**
+     * RC4 encryption/decryption of the remaining bytes of src into dst, both buffers advance.
+     *
+     * @param src  the data to be encrypted/decrypted
+     * @param dst  the buffer to put the result in, needs at least src.remaining() bytes of space
+     */
+    public void rc4(ByteBuffer src, ByteBuffer dst) {
+
+        int len = src.remaining();
+        if (dst.remaining() < len) {
+            throw new BufferOverflowException();
+        }
 
+        if (src.hasArray() && dst.hasArray()) {
+            rc4(src.array(), src.arrayOffset() + src.position(), len, dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.position() + len);
+            dst.position(dst.position() + len);
+            return;
+        }
+
+        int[] state = this.state;
+        int tmp;
+
+        for (int i=0; i < len; i++) {
+
+            x = (x + 1) & 0xff;
             tmp = state[x];
+            y = (tmp + y) & 0xff;
+
             state[x] = state[y];
             state[y] = tmp;
 
-            xorIndex = ((state[x] &0xff) + (state[y] & 0xff)) & 0xff;
-            result[i] = (byte)(buf[i] ^ state[xorIndex]);
+            dst.put((byte)(src.get() ^ state[(state[x] + tmp) & 0xff]));
         }
+    }
 
-        //this.x = lx;
-        //this.y = ly;
+    /**
+     * Advances the state as if the given amount of bytes had been encrypted/decrypted
+     *
+     * @param amount  the amount of bytes to skip
+     */
+    public void skip(long amount) {
 
-        return result;
+        int[] state = this.state;
+        int tmp;
+
+        for (long i = 0; i < amount; i++) {
+
+            x = (x + 1) & 0xff;
+            tmp = state[x];
+            y = (tmp + y) & 0xff;
+
+            state[x] = state[y];
+            state[y] = tmp;
+        }
     }
 
     public boolean couldBeFresh() {
@@ -185,22 +266,36 @@ public class RC4 {
     }
 
     public void undoRc4(byte[] buf) {
+        undoRc4(buf.length);
+    }
 
-        byte tmp;
+    /**
+     * Reverts the state to before the given amount of bytes were encrypted/decrypted
+     */
+    public void undoRc4(int amount) {
+
+        int tmp;
 
-        for (int i = buf.length - 1; i >= 0; i--) {
+        for (int i = amount - 1; i >= 0; i--) {
 
             tmp = state[x];
             state[x] = state[y];
             state[y] = tmp;
 
-            y = (y - (state[x] & 0xff)) & 0xff;
+            y = (y - state[x]) & 0xff;
             x = (x - 1) & 0xff;
         }
 
     }
 
+    /**
+     * @return a copy of the current state
+     */
     public byte[] getState () {
-        return state;
+        byte[] result = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            result[i] = (byte)state[i];
+        }
+        return result;
     }
-}
\ No newline at end of file
+}
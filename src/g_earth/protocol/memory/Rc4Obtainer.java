@@ -11,8 +11,10 @@ import g_earth.protocol.packethandler.IncomingHandler;
 import g_earth.protocol.packethandler.OutgoingHandler;
 import g_earth.protocol.packethandler.PayloadBuffer;
 
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Rc4Obtainer {
 
@@ -75,31 +77,121 @@ public class Rc4Obtainer {
     }
 
     private boolean onSendFirstEncryptedMessage(Handler handler, List<byte[]> potentialRC4tables) {
-        for (byte[] possible : potentialRC4tables) {
+        byte[] encBuffer = new byte[handler.getEncryptedBuffer().size()];
+        for (int i = 0; i < encBuffer.length; i++) {
+            encBuffer[i] = handler.getEncryptedBuffer().get(i);
+        }
+
+        RC4Search search = new RC4Search(potentialRC4tables, encBuffer, handler.getMessageSide() == HMessage.Side.TOSERVER);
+        RC4 found = search.run();
+        if (found != null) {
+            client.onRC4found(search.getFoundTable());
+            handler.setRc4(found);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tries all (x, y) positions of all potential tables, split up over candidates and y ranges.
+     * Once a partition finds the table, the others stop at their next y.
+     *
+     * The table must be fresh (x = y = 0) once the buffered bytes are undone, which fixes x: undoing n bytes moves x back by n.
+     * Every remaining guess first decrypts the length of the first packet only, the whole buffer gets decrypted and framed
+     * only if that length fits in the buffer.
+     */
+    static class RC4Search {
+
+        private static final int MIN_Y_RANGE = 16;
+        private static final int PROBE_LENGTH = 6;
+
+        private final List<byte[]> potentialRC4tables;
+        private final byte[] encBuffer;
+        private final boolean outgoing;
+        private final AtomicReference<RC4> found = new AtomicReference<>(null);
+        private volatile byte[] foundTable = null;
+
+        RC4Search(List<byte[]> potentialRC4tables, byte[] encBuffer, boolean outgoing) {
+            this.potentialRC4tables = potentialRC4tables;
+            this.encBuffer = encBuffer;
+            this.outgoing = outgoing;
+        }
+
+        /**
+         * @return the cipher at the start of the encrypted buffer, null if none of the tables fits
+         */
+        RC4 run() {
+            ForkJoinPool.commonPool().invoke(new Partition(0, potentialRC4tables.size(), 0, 256));
+            return found.get();
+        }
+
+        byte[] getFoundTable() {
+            return foundTable;
+        }
+
+        private class Partition extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
 
-            byte[] encBuffer = new byte[handler.getEncryptedBuffer().size()];
-            for (int i = 0; i < encBuffer.length; i++) {
-                encBuffer[i] = handler.getEncryptedBuffer().get(i);
+            private final int candidateFrom, candidateTo, yFrom, yTo;
+
+            Partition(int candidateFrom, int candidateTo, int yFrom, int yTo) {
+                this.candidateFrom = candidateFrom;
+                this.candidateTo = candidateTo;
+                this.yFrom = yFrom;
+                this.yTo = yTo;
+            }
+
+            @Override
+            protected void compute() {
+                if (found.get() != null) return;
+
+                if (candidateTo - candidateFrom > 1) {
+                    int middle = (candidateFrom + candidateTo) >>> 1;
+                    invokeAll(new Partition(candidateFrom, middle, yFrom, yTo), new Partition(middle, candidateTo, yFrom, yTo));
+                }
+                else if (candidateTo - candidateFrom == 1 && yTo - yFrom > MIN_Y_RANGE) {
+                    int middle = (yFrom + yTo) >>> 1;
+                    invokeAll(new Partition(candidateFrom, candidateTo, yFrom, middle), new Partition(candidateFrom, candidateTo, middle, yTo));
+                }
+                else if (candidateTo - candidateFrom == 1) {
+                    search(potentialRC4tables.get(candidateFrom));
+                }
             }
 
-            for (int i = 0; i < 256; i++) {
-                for (int j = 0; j < 256; j++) {
-                    byte[] keycpy = Arrays.copyOf(possible, possible.length);
-                    RC4 rc4Tryout = new RC4(keycpy, i, j);
+            private void search(byte[] possible) {
+                byte[] decoded = new byte[encBuffer.length];
+                int i = outgoing ? encBuffer.length & 0xff : 0;
+
+                for (int j = yFrom; j < yTo && found.get() == null; j++) {
+                    // without undoing anything, only (0, 0) can be fresh
+                    if (!outgoing && j != 0) return;
+
+                    RC4 rc4Tryout = new RC4(possible, i, j);
 
-                    if (handler.getMessageSide() == HMessage.Side.TOSERVER) rc4Tryout.undoRc4(encBuffer);
+                    if (outgoing) rc4Tryout.undoRc4(encBuffer.length);
                     if (rc4Tryout.couldBeFresh()) {
-                        byte[] encDataCopy = Arrays.copyOf(encBuffer, encBuffer.length);
                         RC4 rc4TryCopy = rc4Tryout.deepCopy();
 
                         try {
+                            int probed = 0;
+                            if (encBuffer.length >= PROBE_LENGTH) {
+                                rc4TryCopy.rc4(encBuffer, 0, PROBE_LENGTH, decoded, 0);
+                                int length = ((decoded[0] & 0xFF) << 24) | ((decoded[1] & 0xFF) << 16) |
+                                        ((decoded[2] & 0xFF) << 8) | (decoded[3] & 0xFF);
+                                if (length < 2 || length > encBuffer.length - 4) continue;
+                                probed = PROBE_LENGTH;
+                            }
+
                             PayloadBuffer payloadBuffer = new PayloadBuffer();
-                            byte[] decoded = rc4TryCopy.rc4(encDataCopy);
-                            HPacket[] checker = payloadBuffer.pushAndReceive(decoded);
+                            rc4TryCopy.rc4(encBuffer, probed, encBuffer.length - probed, decoded, probed);
+                            payloadBuffer.push(decoded);
+                            HPacket[] checker = payloadBuffer.receive();
 
                             if (payloadBuffer.peak().length == 0) {
-                                handler.setRc4(rc4Tryout);
-                                return true;
+                                if (found.compareAndSet(null, rc4Tryout)) {
+                                    foundTable = possible;
+                                }
+                                return;
                             }
 
                         } catch (Exception e) {
@@ -111,6 +203,5 @@ public class Rc4Obtainer {
                 }
             }
         }
-        return false;
     }
 }
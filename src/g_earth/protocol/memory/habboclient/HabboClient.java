@@ -1,6 +1,9 @@
 package g_earth.protocol.memory.habboclient;
 
 import g_earth.protocol.HConnection;
+import g_earth.protocol.HMessage;
+import g_earth.protocol.StateChangeListener;
+import g_earth.protocol.TrafficListener;
 
 import java.util.List;
 
@@ -9,14 +12,38 @@ import java.util.List;
  */
 public abstract class HabboClient {
 
+    private static final int PRODUCTIONID = 4000;
+
     protected HConnection hConnection;
+    protected volatile String production = "";
 
     public HabboClient(HConnection connection) {
         this.hConnection = connection;
+
+        TrafficListener productionListener = message -> {
+            if (message.getDestination() == HMessage.Side.TOSERVER && message.getPacket().headerId() == PRODUCTIONID) {
+                production = message.getPacket().readString();
+            }
+        };
+        connection.addTrafficListener(0, productionListener);
+
+        // there's a HabboClient per proxied connection, don't keep listening once it's gone
+        connection.addStateChangeListener(new StateChangeListener() {
+            @Override
+            public void stateChanged(HConnection.State oldState, HConnection.State newState) {
+                if (newState == HConnection.State.NOT_CONNECTED) {
+                    connection.removeTrafficListener(productionListener);
+                    connection.removeStateChangeListener(this);
+                }
+            }
+        });
     }
 
     // optional
     public abstract List<byte[]> getRC4cached();
 
     public abstract List<byte[]> getRC4possibilities();
+
+    // optional, table is one of the arrays returned by getRC4cached or getRC4possibilities
+    public void onRC4found(byte[] table) {}
 }
@@ -0,0 +1,119 @@
+package g_earth.protocol.memory.habboclient.linux;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Looks for the flash client process in /proc, waiting longer between every pass (10 ms up to 500 ms).
+ *
+ * Processes of which the cmdline didn't match are remembered and not read again. A process gets some time to settle first,
+ * a forked process only gets its own cmdline shortly after it started.
+ */
+class FlashProcessFinder {
+
+    private static final String[] potentialProcessNames = {"--ppapi-flash-args", "plugin-container"};
+
+    private static final long MIN_BACKOFF = 10;
+    private static final long MAX_BACKOFF = 500;
+    private static final long SETTLE_TIME = 2000;
+
+    // pid -> time it was first seen not being the flash client
+    private static final Map<Integer, Long> rejected = new ConcurrentHashMap<>();
+
+    private volatile boolean cancelled = false;
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return the pid of the flash client, or -1 when it wasn't found in time or the search was cancelled
+     */
+    int find(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        long backoff = MIN_BACKOFF;
+
+        while (!cancelled) {
+            int pid = scan();
+            if (pid != -1) return pid;
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) break;
+
+            try {
+                Thread.sleep(Math.min(backoff, remaining));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+        return -1;
+    }
+
+    private static int scan() {
+        File[] fileList = new File("/proc").listFiles();
+        if (fileList == null) return -1;
+
+        long now = System.currentTimeMillis();
+        Set<Integer> alive = new HashSet<>();
+        int found = -1;
+
+        for (File file : fileList) {
+            if (!stringIsNumeric(file.getName())) continue;
+
+            int pid = Integer.parseInt(file.getName());
+            alive.add(pid);
+
+            Long rejectedSince = rejected.get(pid);
+            if (rejectedSince != null && now - rejectedSince > SETTLE_TIME) continue;
+
+            if (isHabboProcess(pid)) {
+                rejected.remove(pid);
+                found = pid;
+            }
+            else if (rejectedSince == null) {
+                rejected.put(pid, now);
+            }
+        }
+
+        // pids get reused
+        rejected.keySet().retainAll(alive);
+        return found;
+    }
+
+    private static boolean isHabboProcess(int pid) {
+        String path = "/proc/" + pid + "/cmdline";
+        for (String s : potentialProcessNames) {
+            if (fileContainsString(path, s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean stringIsNumeric(String str) {
+        for (char c : str.toCharArray()) {
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+    static boolean fileContainsString(String path, String contains) {
+
+        try {
+            List<String> lines = Files.readAllLines(new File(path).toPath());
+            for (String line : lines) {
+                if (line.contains(contains)) return true;
+            }
+        } catch (Exception e) {
+            // process of specified path not running anymore
+        }
+        return false;
+
+    }
+}
@@ -0,0 +1,132 @@
+package g_earth.protocol.memory.habboclient.linux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Remembers the permutation windows per 64 KB page of a process, together with a fingerprint of the page.
+ * On the next scan, only pages of which the fingerprint changed (or pages which weren't mapped before) are scanned again.
+ * The padding of all windows is always checked on the current memory.
+ *
+ * The fingerprint only hashes the first long of every 128 bytes (1/16th of the page), it's a sample, not a checksum.
+ * A 1 KB table covers 8 of these samples, so writing a table only goes unnoticed if those 64 bytes happen to keep
+ * their old values (or the hash collides). That's unlikely for a freshly shuffled table, but not impossible,
+ * and such a page stays skipped until the detector is dropped (another flash process, or a restart of G-Earth).
+ */
+class IncrementalTableDetector implements RC4TableDetector {
+
+    private static final int PAGE_SIZE = 1 << 16;
+    private static final int SAMPLE_STRIDE = 128;
+
+    private final PermutationTableDetector detector = new PermutationTableDetector();
+
+    private Map<Long, Long> fingerprints = new HashMap<>();          // page start -> fingerprint
+    private TreeMap<Long, List<Long>> windows = new TreeMap<>();     // page start -> windows starting in the page
+
+    @Override
+    public synchronized List<LinuxMemorySnippet> findTables(FileChannel memory, List<long[]> regions) throws IOException {
+        Map<Long, Long> newFingerprints = fingerprint(memory, regions);
+        TreeMap<Long, List<Long>> newWindows = new TreeMap<>();
+
+        // a window starting near the end of a page also covers the next page, so both pages are scanned if the next one changed
+        List<long[]> ranges = new ArrayList<>();
+        for (long[] region : regions) {
+            long[] range = null;
+            for (long page = region[0]; page < region[1]; page = pageEnd(page, region[1])) {
+                long next = pageEnd(page, region[1]);
+                boolean rescan = isChanged(page, newFingerprints) || (next < region[1] && isChanged(next, newFingerprints));
+
+                if (!rescan) {
+                    newWindows.put(page, windows.get(page));
+                    range = null;
+                }
+                else {
+                    newWindows.put(page, new ArrayList<>());
+                    if (range == null) {
+                        range = new long[]{page, next, region[1]};
+                        ranges.add(range);
+                    }
+                    range[1] = next;
+                }
+            }
+        }
+
+        for (long windowStart : detector.findWindows(memory, ranges)) {
+            newWindows.floorEntry(windowStart).getValue().add(windowStart);
+        }
+        fingerprints = newFingerprints;
+        windows = newWindows;
+
+        List<Long> all = new ArrayList<>();
+        for (List<Long> pageWindows : newWindows.values()) {
+            all.addAll(pageWindows);
+        }
+        Collections.sort(all);
+        return detector.findTablesInWindows(memory, all);
+    }
+
+    private boolean isChanged(long page, Map<Long, Long> newFingerprints) {
+        Long old = fingerprints.get(page);
+        return old == null || !old.equals(newFingerprints.get(page)) || !windows.containsKey(page);
+    }
+
+    // pages are 64 KB aligned, except for the first one of a region
+    private static long pageEnd(long page, long regionEnd) {
+        return Math.min((page & -PAGE_SIZE) + PAGE_SIZE, regionEnd);
+    }
+
+    private static Map<Long, Long> fingerprint(FileChannel memory, List<long[]> regions) throws IOException {
+        List<CompletableFuture<Map<Long, Long>>> chunks = new ArrayList<>();
+        for (long[] region : regions) {
+            for (long chunkStart = region[0]; chunkStart < region[1]; ) {
+                long start = chunkStart;
+                long end = Math.min((chunkStart & -PAGE_SIZE) + PermutationTableDetector.SCAN_CHUNK_SIZE, region[1]);
+                chunks.add(CompletableFuture.supplyAsync(() -> fingerprintChunk(memory, start, end), PermutationTableDetector.scanPool));
+                chunkStart = end;
+            }
+        }
+
+        Map<Long, Long> result = new HashMap<>();
+        try {
+            for (CompletableFuture<Map<Long, Long>> chunk : chunks) {
+                result.putAll(chunk.join());
+            }
+        }
+        catch (CompletionException e) {
+            throw new IOException(e.getCause());
+        }
+        return result;
+    }
+
+    private static Map<Long, Long> fingerprintChunk(FileChannel memory, long start, long end) {
+        Map<Long, Long> result = new HashMap<>();
+
+        ByteBuffer data = PermutationTableDetector.scanBuffer.get();
+        data.clear();
+        data.limit((int)(end - start));
+        try {
+            PermutationTableDetector.read(memory, start, data);
+        }
+        catch (IOException e) {
+            // unreadable pages get no fingerprint, so they're scanned (and fail again) next time
+            return result;
+        }
+        int length = data.position();
+
+        for (long page = start; page < start + length; page = pageEnd(page, start + length)) {
+            int from = (int)(page - start);
+            int to = (int)(pageEnd(page, start + length) - start);
+
+            long hash = to - from;
+            for (int i = from; i + 8 <= to; i += SAMPLE_STRIDE) {
+                hash = hash * 0x9E3779B97F4A7C15L + data.getLong(i);
+            }
+            result.put(page, hash);
+        }
+        return result;
+    }
+}
@@ -1,56 +1,160 @@
 package g_earth.protocol.memory.habboclient.linux;
 
+import g_earth.misc.Cacher;
 import g_earth.protocol.HConnection;
+import g_earth.protocol.StateChangeListener;
 import g_earth.protocol.memory.habboclient.HabboClient;
+import org.json.simple.JSONObject;
 
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 public class LinuxHabboClient extends HabboClient {
 
+    private static final long DISCOVERY_TIMEOUT = 30000;
 
-    private static final String[] potentialProcessNames = {"--ppapi-flash-args", "plugin-container"};
-
-    private int PID;
-    private List<long[]> maps;
+    private volatile int PID = -1;
+    private final CountDownLatch discovered = new CountDownLatch(1);
+    private List<long[]> maps = new ArrayList<>();
 
     private static final boolean DEBUG = false;
 
+    // per production: locations ("<mapping size>:<offset in mapping>", hex) where the RC4 table was found before
+    private static final String OFFSETS_CACHE_KEY = "RC4OffsetsLinux";
+    private static final int MAX_CACHED_OFFSETS = 10;
+
+    // the windows found in a process are remembered for the next connection, only the flash process of the last scan is kept
+    private static final Map<Integer, RC4TableDetector> detectors = new HashMap<>();
+    private final Map<byte[], String> candidateLocations = Collections.synchronizedMap(new IdentityHashMap<>());
+
     public LinuxHabboClient(HConnection connection) {
         super(connection);
 
-        File folder = new File("/proc");
-
-        boolean found = false;
-
-        do {
-            File[] fileList = folder.listFiles();
-            for (File file : fileList) {
-                if (file.isDirectory() && stringIsNumeric(file.getName())) {
-                    String path = "/proc/" + file.getName() + "/cmdline";
-                    boolean isHabboProcess = false;
-                    for (String s : potentialProcessNames) {
-                        if (fileContainsString(path, s)) {
-                            isHabboProcess = true;
-                            break;
-                        }
-                    }
-                    if (isHabboProcess) {
-                        this.PID = Integer.parseInt(file.getName());
-                        this.maps = new ArrayList<>();
-                        found = true;
-                    }
-                }
+        // this runs on the proxy thread, which must start forwarding right away,
+        // the process only needs to be known once the RC4 table gets searched
+        FlashProcessFinder finder = new FlashProcessFinder();
+        StateChangeListener cancelOnAbort = (oldState, newState) -> {
+            if (newState == HConnection.State.NOT_CONNECTED) finder.cancel();
+        };
+        connection.addStateChangeListener(cancelOnAbort);
+
+        Thread discovery = new Thread(() -> {
+            PID = finder.find(DISCOVERY_TIMEOUT);
+            connection.removeStateChangeListener(cancelOnAbort);
+            discovered.countDown();
+
+            if (PID == -1) {
+                System.err.println("Could not find the flash client process");
             }
-        } while (!found);
+            else if (DEBUG) System.out.println("* Found flashclient process: " + PID);
+        }, "G-Earth flash process finder");
+        discovery.setDaemon(true);
+        discovery.start();
+    }
 
-        if (DEBUG) System.out.println("* Found flashclient process: " + PID);
+    // the pid of the flash client, -1 if it wasn't found
+    private int awaitPid() {
+        try {
+            discovered.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        return PID;
     }
 
     @Override
     public List<byte[]> getRC4cached() {
-        return new ArrayList<>();
+        List<byte[]> result = new ArrayList<>();
+        if (awaitPid() == -1) return result;
+
+        List<String> cachedLocations = readCachedLocations((JSONObject) Cacher.get(OFFSETS_CACHE_KEY), production);
+        if (cachedLocations.isEmpty()) return result;
+
+        refreshMemoryMaps();
+        for (String location : cachedLocations) {
+            String[] split = location.split(":");
+            long size = Long.parseLong(split[0], 16);
+            long offset = Long.parseLong(split[1], 16);
+
+            for (long[] map : maps) {
+                if (map[1] - map[0] != size) continue;
+
+                LinuxMemorySnippet snippet = new LinuxMemorySnippet(map[0] + offset, new byte[1024]);
+                fetchMemory(snippet);
+                byte[] table = PermutationTableDetector.readPaddedTable(snippet.getData(), 0);
+                if (table != null) {
+                    candidateLocations.put(table, location);
+                    result.add(table);
+                }
+            }
+        }
+
+        if (DEBUG) System.out.println("* Found cached RC4 candidates (amount: " + result.size() + ")");
+        return result;
+    }
+
+    @Override
+    public void onRC4found(byte[] table) {
+        String location = candidateLocations.get(table);
+        candidateLocations.clear();
+        if (location == null) return;
+
+        JSONObject revisionList = (JSONObject) Cacher.get(OFFSETS_CACHE_KEY);
+        List<String> cachedLocations = readCachedLocations(revisionList, production);
+        if (cachedLocations.size() > 0 && cachedLocations.get(0).equals(location)) return;
+
+        cachedLocations.remove(location);
+        cachedLocations.add(0, location);
+        while (cachedLocations.size() > MAX_CACHED_OFFSETS) {
+            cachedLocations.remove(cachedLocations.size() - 1);
+        }
+
+        // JSONObject is a raw map, fill a typed copy instead
+        Map<String, Object> productions = new HashMap<>();
+        if (revisionList != null) {
+            for (Object key : revisionList.keySet()) {
+                productions.put(String.valueOf(key), revisionList.get(key));
+            }
+        }
+        productions.put(production, cachedLocations);
+        Cacher.put(OFFSETS_CACHE_KEY, new JSONObject(productions));
+    }
+
+    // the cached locations of a production as a new, modifiable list
+    private static List<String> readCachedLocations(JSONObject revisionList, String production) {
+        List<String> result = new ArrayList<>();
+        if (revisionList == null) return result;
+
+        Object locations = revisionList.get(production);
+        if (locations instanceof List) {
+            for (Object location : (List<?>) locations) {
+                result.add(String.valueOf(location));
+            }
+        }
+        return result;
+    }
+
+    private static RC4TableDetector getDetector(int pid) {
+        synchronized (detectors) {
+            if (!detectors.containsKey(pid)) {
+                detectors.clear();
+                detectors.put(pid, new IncrementalTableDetector());
+            }
+            return detectors.get(pid);
+        }
+    }
+
+    // "<mapping size>:<offset in mapping>" of an address in one of the scanned mappings
+    private String locationOf(long address) {
+        for (long[] map : maps) {
+            if (address >= map[0] && address < map[1]) {
+                return Long.toHexString(map[1] - map[0]) + ":" + Long.toHexString(address - map[0]);
+            }
+        }
+        return null;
     }
 
 
@@ -87,24 +191,6 @@ public class LinuxHabboClient extends HabboClient {
         if (DEBUG) System.out.println("* Found memory maps (amount: " + maps.size() + ")");
     }
 
-    private static List<LinuxMemorySnippet> createMemorySnippetList (List<long[]> maps) {
-        List<LinuxMemorySnippet> result = new ArrayList<>();
-
-        for (long[] map : maps) {
-            long begin = map[0];
-            long end = map[1];
-
-            LinuxMemorySnippet snippet = new LinuxMemorySnippet(begin, new byte[(int)(end - begin)] );
-            result.add(snippet);
-        }
-        return result;
-    }
-
-    private void fetchMemory(List<LinuxMemorySnippet> snippets) {
-        for (LinuxMemorySnippet snippet : snippets) {
-            fetchMemory(snippet);
-        }
-    }
     private void fetchMemory(LinuxMemorySnippet snippet) {
         String memoryPath = "/proc/" + PID + "/mem";
         long begin = snippet.offset;
@@ -119,155 +205,23 @@ public class LinuxHabboClient extends HabboClient {
         }
     }
 
-
-    static boolean stringIsNumeric(String str) {
-        for (char c : str.toCharArray()) {
-            if (c < '0' || c > '9') return false;
-        }
-        return true;
-    }
-    static boolean fileContainsString(String path, String contains) {
-
-        try {
-            List<String> lines = Files.readAllLines(new File(path).toPath());
-            for (String line : lines) {
-                if (line.contains(contains)) return true;
-            }
-        } catch (Exception e) {
-            // process of specified path not running anymore
-        }
-        return false;
-
-    }
-
     public List<byte[]> getRC4possibilities() {
-        int offset = 4;
-
-        List<LinuxMemorySnippet> possibilities = createMemorySnippetListForRC4();
-        fetchMemory(possibilities);
-
-        List<byte[]> resultSet = new ArrayList<>();
-
-        for (LinuxMemorySnippet snippet : possibilities) {
-            if (snippet.getData().length >= 1024 && snippet.getData().length <= 1024+2*offset) {
-                for (int i = 0; i < (snippet.getData().length - ((256 - 1) * offset)); i+=offset) {
-                    byte[] wannabeRC4data = Arrays.copyOfRange(snippet.getData(), i, 1024 + i);
-                    byte[] data = new byte[256]; // dis is the friggin key
-
-                    boolean isvalid = true;
-                    for (int j = 0; j < 1024; j++) {
-                        if (j % 4 != 0 && wannabeRC4data[j] != 0) {
-                            isvalid = false;
-                            break;
-                        }
-                        if (j % 4 == 0) {
-                            data[j/4] = wannabeRC4data[j];
-                        }
-                    }
-                    if (isvalid) {
-                        resultSet.add(data);
-                    }
-                }
-            }
-        }
-        return resultSet;
-    }
-
-    private List<LinuxMemorySnippet> createMemorySnippetListForRC4() {
-
-        Object lock = new Object();
+        if (awaitPid() == -1) return new ArrayList<>();
 
         refreshMemoryMaps();
         String memoryPath = "/proc/" + PID + "/mem";
 
-        int[] count = {0};
-
-        List<LinuxMemorySnippet> result = new ArrayList<>();
-        for (long[] map : maps) {
-            new Thread(() -> {
-                int offset = 4;
-                long start = map[0];
-                long end = map[1];
-
-                byte[] data = new byte[(int)(end - start)];
-                try {
-                    RandomAccessFile raf = new RandomAccessFile(memoryPath, "r");
-                    raf.seek(start);
-                    raf.read(data);
-                    raf.close();
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
-                }
-
-
-                int maskCount = 0;
-                int[] nToMap = new int[256];
-                int[] removeMap = new int[256];
-                for (int i = 0; i < removeMap.length; i++) {
-                    removeMap[i] = -1;
-                    nToMap[i] = -1;
-                }
-
-
-                int matchStart = -1;
-                int matchEnd = -1;
-
-                for (int i = 0; i < data.length; i+=offset) {
-                    int b = (((int)data[i]) + 128) % 256;
-                    int indInMap = (i/4) % 256;
-
-                    int deletedNumber = removeMap[indInMap];
-                    if (deletedNumber != -1) {
-                        nToMap[deletedNumber] = -1;
-                        maskCount --;
-                        removeMap[indInMap] = -1;
-                    }
-
-                    if (nToMap[b] == -1) {
-                        maskCount ++;
-                        removeMap[indInMap] = b;
-                        nToMap[b] = indInMap;
-                    }
-                    else {
-                        removeMap[nToMap[b]] = -1;
-                        removeMap[indInMap] = b;
-                        nToMap[b] = indInMap;
-                    }
-
-                    if (maskCount == 256) {
-                        if (matchStart == -1) {
-                            matchStart = i - ((256 - 1) * offset);
-                            matchEnd = i;
-                        }
-
-                        if (matchEnd < i - ((256 - 1) * offset)) {
-                            result.add(new LinuxMemorySnippet(start + matchStart, new byte[matchEnd - matchStart + 4]));
-                            matchStart = i - ((256 - 1) * offset);
-                        }
-                        matchEnd = i;
-                    }
-
-                }
-
-                synchronized (lock) {
-                    if (matchStart != -1) {
-                        result.add(new LinuxMemorySnippet(start + matchStart, new byte[matchEnd - matchStart + 4]));
-                    }
-                    count[0] ++;
-                }
-
-            }).start();
-        }
-
-        while (count[0] < maps.size()) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        List<byte[]> resultSet = new ArrayList<>();
+        try (FileChannel memory = FileChannel.open(new File(memoryPath).toPath(), StandardOpenOption.READ)) {
+            for (LinuxMemorySnippet table : getDetector(PID).findTables(memory, maps)) {
+                String location = locationOf(table.getOffset());
+                if (location != null) candidateLocations.put(table.getData(), location);
+                resultSet.add(table.getData());
             }
         }
-
-        return result;
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        return resultSet;
     }
 }
@@ -0,0 +1,19 @@
+package g_earth.protocol.memory.habboclient.linux;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Finds RC4 tables in a memory image, which can be /proc/<pid>/mem of a running client as well as a dumped or generated file.
+ */
+public interface RC4TableDetector {
+
+    /**
+     * @param memory   the image, only read with positional reads
+     * @param regions  [start, end) ranges of positions to scan
+     * @return the 256 byte tables, each with the position it was found at
+     */
+    List<LinuxMemorySnippet> findTables(FileChannel memory, List<long[]> regions) throws IOException;
+
+}
@@ -3,8 +3,6 @@ package g_earth.protocol.memory.habboclient.windows;
 
 import g_earth.misc.Cacher;
 import g_earth.protocol.HConnection;
-import g_earth.protocol.HMessage;
-import g_earth.protocol.TrafficListener;
 import g_earth.protocol.memory.habboclient.HabboClient;
 import org.json.simple.JSONObject;
 
@@ -22,17 +20,8 @@ import java.util.*;
 public class WindowsHabboClient extends HabboClient {
     public WindowsHabboClient(HConnection connection) {
         super(connection);
-
-        connection.addTrafficListener(0, message -> {
-            if (message.getDestination() == HMessage.Side.TOSERVER && message.getPacket().headerId() == PRODUCTIONID) {
-                production = message.getPacket().readString();
-            }
-        });
     }
 
-    private static final int PRODUCTIONID = 4000;
-    private String production = "";
-
     private String getOffsetsCacheKey() {
         return "RC4Offsets";
     }
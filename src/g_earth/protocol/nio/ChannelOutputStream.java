@@ -0,0 +1,60 @@
+package g_earth.protocol.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * OutputStream on top of a non-blocking SocketChannel, a write only returns once all bytes are written
+ * (Channels.newOutputStream refuses non-blocking channels)
+ */
+public class ChannelOutputStream extends OutputStream {
+
+    private final SocketChannel channel;
+    private Selector writeSelector = null;
+
+    public ChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    public synchronized void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                waitUntilWritable();
+            }
+        }
+    }
+
+    // socket send buffer is full, wait on a private selector so the event loop doesn't get involved
+    // (timeout because closing the channel doesn't wake up the select)
+    private void waitUntilWritable() throws IOException {
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        writeSelector.select(100);
+        writeSelector.selectedKeys().clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writeSelector != null) {
+            writeSelector.close();
+            writeSelector = null;
+        }
+        channel.close();
+    }
+}
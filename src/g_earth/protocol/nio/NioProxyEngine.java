@@ -0,0 +1,247 @@
+package g_earth.protocol.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Alternative for the 2 available()/sleep polling threads per proxy session:
+ * one selector thread reads both directions of every session, threads are only busy while there is data to handle.
+ *
+ * The handlers don't run on the selector thread, every direction of a session has its own worker
+ * (one task at a time on a shared pool, so packets stay in order). A handler which takes its time
+ * (waiting for extensions) only holds up the packets following it in its own direction.
+ * A direction stops being read while too much of its data is waiting for the handler.
+ */
+public class NioProxyEngine {
+
+    private static final boolean DEBUG = false;
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final int MAX_QUEUED = 1 << 20;
+
+    public interface ReadListener {
+        void act(byte[] buffer) throws IOException;
+    }
+    public interface CloseListener {
+        void act();
+    }
+
+    // hands the reads of one channel to its handler, in order
+    private class Direction implements Runnable {
+        private final Session session;
+        private final SocketChannel channel;
+        private final ReadListener listener;
+        private final Queue<byte[]> reads = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger(0);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicBoolean paused = new AtomicBoolean(false);
+        private volatile SelectionKey key = null;
+
+        private Direction(Session session, SocketChannel channel, ReadListener listener) {
+            this.session = session;
+            this.channel = channel;
+            this.listener = listener;
+        }
+
+        // selector thread
+        private void offer(byte[] buffer) {
+            reads.add(buffer);
+            if (queued.addAndGet(buffer.length) > MAX_QUEUED && paused.compareAndSet(false, true)) {
+                key.interestOps(0);
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                byte[] buffer;
+                while ((buffer = reads.poll()) != null) {
+                    if (session.isClosed()) return;
+                    try {
+                        listener.act(buffer);
+                    } catch (IOException e) {
+                        if (DEBUG) e.printStackTrace();
+                        session.close();
+                        return;
+                    }
+                    queued.addAndGet(-buffer.length);
+                    resumeIfDrained();
+                }
+                resumeIfDrained();
+                scheduled.set(false);
+            } while (!reads.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        private void resumeIfDrained() {
+            if (queued.get() < MAX_QUEUED / 2 && paused.compareAndSet(true, false)) {
+                resumed.add(this);
+                selector.wakeup();
+            }
+        }
+    }
+
+    public class Session {
+        private final SocketChannel client;
+        private final SocketChannel server;
+        private final Direction fromClient;
+        private final Direction fromServer;
+        private final CloseListener onClose;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Session(SocketChannel client, ReadListener onClientRead, SocketChannel server, ReadListener onServerRead, CloseListener onClose) {
+            this.client = client;
+            this.server = server;
+            this.fromClient = new Direction(this, client, onClientRead);
+            this.fromServer = new Direction(this, server, onServerRead);
+            this.onClose = onClose;
+        }
+
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        public void close() {
+            if (closed.getAndSet(true)) return;
+            if (DEBUG) System.out.println("[nio] closing session");
+
+            try {
+                client.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (sessions) {
+                sessions.remove(this);
+            }
+            onClose.act();
+        }
+    }
+
+    private final List<Session> sessions = new ArrayList<>();
+    private final Queue<Session> pendingSessions = new ConcurrentLinkedQueue<>();
+    private final Queue<Direction> resumed = new ConcurrentLinkedQueue<>();
+    private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "G-Earth NIO handler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private Selector selector = null;
+
+    /**
+     * Hands both sides of a proxy session over to the event loop, the channels are switched to non-blocking mode.
+     * Write to them through a ChannelOutputStream.
+     */
+    public Session register(SocketChannel client, ReadListener onClientRead, SocketChannel server, ReadListener onServerRead, CloseListener onClose) throws IOException {
+        client.configureBlocking(false);
+        server.configureBlocking(false);
+
+        Session session = new Session(client, onClientRead, server, onServerRead, onClose);
+        synchronized (sessions) {
+            sessions.add(session);
+        }
+        pendingSessions.add(session);
+        ensureRunning().wakeup();
+        return session;
+    }
+
+    public void closeAll() {
+        List<Session> all;
+        synchronized (sessions) {
+            all = new ArrayList<>(sessions);
+        }
+        for (Session session : all) {
+            session.close();
+        }
+    }
+
+    private synchronized Selector ensureRunning() throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            Thread loop = new Thread(this::eventLoop, "G-Earth NIO proxy");
+            loop.setDaemon(true);
+            loop.start();
+        }
+        return selector;
+    }
+
+    private void eventLoop() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            Session pending;
+            while ((pending = pendingSessions.poll()) != null) {
+                if (pending.isClosed()) continue;
+                try {
+                    pending.fromClient.key = pending.client.register(selector, SelectionKey.OP_READ, pending.fromClient);
+                    pending.fromServer.key = pending.server.register(selector, SelectionKey.OP_READ, pending.fromServer);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    pending.close();
+                }
+            }
+
+            Direction resume;
+            while ((resume = resumed.poll()) != null) {
+                try {
+                    resume.key.interestOps(SelectionKey.OP_READ);
+                } catch (CancelledKeyException e) {
+                    // session got closed in the meantime
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                Direction direction = (Direction) key.attachment();
+                Session session = direction.session;
+                if (!key.isValid() || session.isClosed()) continue;
+
+                try {
+                    readBuffer.clear();
+                    int amount = direction.channel.read(readBuffer);
+                    if (amount == -1) {
+                        session.close();
+                        continue;
+                    }
+                    if (amount == 0) continue;
+
+                    byte[] buffer = new byte[amount];
+                    readBuffer.flip();
+                    readBuffer.get(buffer);
+                    direction.offer(buffer);
+                } catch (IOException | CancelledKeyException e) {
+                    if (DEBUG) e.printStackTrace();
+                    session.close();
+                }
+            }
+        }
+    }
+}
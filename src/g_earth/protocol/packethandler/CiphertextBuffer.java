@@ -0,0 +1,50 @@
+package g_earth.protocol.packethandler;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the encrypted bytes as they arrived, addressed by their position in the keystream,
+ * until the packets decrypted from them have been flushed.
+ */
+class CiphertextBuffer {
+
+    private byte[] buffer = new byte[4096];
+    private int start = 0;
+    private int end = 0;
+    private long startPosition = 0;     // keystream position of buffer[start]
+
+    synchronized void push(byte[] data) {
+        if (end + data.length > buffer.length) {
+            int size = end - start;
+            if (size + data.length > buffer.length) {
+                buffer = Arrays.copyOfRange(buffer, start, start + Math.max(buffer.length * 2, size + data.length));
+            }
+            else {
+                System.arraycopy(buffer, start, buffer, 0, size);
+            }
+            start = 0;
+            end = size;
+        }
+        System.arraycopy(data, 0, buffer, end, data.length);
+        end += data.length;
+    }
+
+    /**
+     * @return null if those bytes aren't buffered (anymore)
+     */
+    synchronized byte[] get(long position, int length) {
+        if (position < startPosition || position + length > startPosition + (end - start)) return null;
+
+        int from = start + (int)(position - startPosition);
+        return Arrays.copyOfRange(buffer, from, from + length);
+    }
+
+    // everything before the given keystream position won't be needed anymore
+    synchronized void release(long position) {
+        int amount = (int)Math.min(end - start, position - startPosition);
+        if (amount <= 0) return;
+
+        start += amount;
+        startPosition += amount;
+    }
+}
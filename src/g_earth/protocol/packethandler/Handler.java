@@ -1,5 +1,6 @@
 package g_earth.protocol.packethandler;
 
+import g_earth.protocol.AsyncTrafficListener;
 import g_earth.protocol.HMessage;
 import g_earth.protocol.HPacket;
 import g_earth.protocol.TrafficListener;
@@ -7,16 +8,20 @@ import g_earth.protocol.crypto.RC4;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 public abstract class Handler {
 
     protected static final boolean DEBUG = false;
+    private static final int MAX_IN_FLIGHT = 256;
 
     volatile PayloadBuffer payloadBuffer = new PayloadBuffer();
-    volatile OutputStream out;
-    volatile Object[] listeners = null; //get notified on packet send
+    final OutboundWriter out;
+    volatile Object[] listeners = null; //get notified on packet send, 0-2: TrafficListener orders, 3: AsyncTrafficListeners
     volatile boolean isTempBlocked = false;
     volatile boolean isDataStream = false;
     volatile int currentIndex = 0;
@@ -24,7 +29,36 @@ public abstract class Handler {
     protected final Object lock = new Object();
 
     protected RC4 decryptcipher = null;
-    protected RC4 encryptcipher = null;
+
+    // unmodified packets get forwarded as the ciphertext they arrived in instead of being encrypted again
+    private final CiphertextBuffer ciphertext = new CiphertextBuffer();
+    private long pushedBytes = 0;           // amount of bytes pushed to the payloadBuffer
+    private long encryptedFrom = -1;        // stream position of the first decrypted byte
+    private long streamPosition = 0;        // stream position of the next packet taken from the payloadBuffer
+    private byte[] decrypted = new byte[0];
+
+    // packets that are being handled by the async listeners or wait for an earlier packet to be forwarded, in stream order
+    private final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+    private volatile boolean pipelined = false;
+
+    private static class InFlight {
+        final HMessage message;
+        final HPacket original;
+        final boolean notify;               // datastream packets go through the listeners
+        final boolean encrypted;
+        final long keystreamPosition;       // -1 if the packet didn't arrive encrypted
+        final long releasePosition;         // ciphertext that can be released once forwarded, -1 if none
+        volatile boolean done = false;
+
+        InFlight(HMessage message, HPacket original, boolean notify, boolean encrypted, long keystreamPosition, long releasePosition) {
+            this.message = message;
+            this.original = original;
+            this.notify = notify;
+            this.encrypted = encrypted;
+            this.keystreamPosition = keystreamPosition;
+            this.releasePosition = releasePosition;
+        }
+    }
 
     protected volatile List<Byte> tempEncryptedBuffer = new ArrayList<>();
     protected volatile boolean isEncryptedStream = false;
@@ -32,7 +66,7 @@ public abstract class Handler {
 
     public Handler(OutputStream outputStream, Object[] listeners) {
         this.listeners = listeners;
-        out = outputStream;
+        out = new OutboundWriter(outputStream, "G-Earth " + getMessageSide() + " writer");
     }
 
     public boolean isDataStream() {return isDataStream;}
@@ -50,6 +84,7 @@ public abstract class Handler {
 
         if (!isEncryptedStream) {
             payloadBuffer.push(buffer);
+            pushedBytes += buffer.length;
         }
         else if (decryptcipher == null) {
             for (int i = 0; i < buffer.length; i++) {
@@ -57,11 +92,20 @@ public abstract class Handler {
             }
         }
         else {
-            byte[] tm = decryptcipher.rc4(buffer);
+            if (encryptedFrom == -1) {
+                encryptedFrom = pushedBytes;
+            }
+            ciphertext.push(buffer);
+
+            if (decrypted.length < buffer.length) {
+                decrypted = new byte[Math.max(buffer.length, decrypted.length * 2)];
+            }
+            decryptcipher.rc4(buffer, 0, buffer.length, decrypted, 0);
             if (DEBUG) {
-                printForDebugging(tm);
+                printForDebugging(Arrays.copyOf(decrypted, buffer.length));
             }
-            payloadBuffer.push(tm);
+            payloadBuffer.push(decrypted, 0, buffer.length);
+            pushedBytes += buffer.length;
         }
 
         if (!isTempBlocked) {
@@ -72,7 +116,7 @@ public abstract class Handler {
 
     public void setRc4(RC4 rc4) {
         this.decryptcipher = rc4.deepCopy();
-        this.encryptcipher = rc4.deepCopy();
+        out.setCipher(rc4.deepCopy());
 
         byte[] encrbuffer = new byte[tempEncryptedBuffer.size()];
         for (int i = 0; i < tempEncryptedBuffer.size(); i++) {
@@ -99,32 +143,58 @@ public abstract class Handler {
         isTempBlocked = false;
     }
 
+    /**
+     * Don't wait for the async listeners to finish a packet before handing them the next one.
+     * Packets still get forwarded in order, a packet that's done waits for the ones before it
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
     /**
      * LISTENERS CAN EDIT THE MESSAGE BEFORE BEING SENT
      * @param message
      */
-    void notifyListeners(HMessage message) {
-        for (int x = 0; x < 3; x++) {
-            for (int i = ((List<TrafficListener>)listeners[x]).size() - 1; i >= 0; i--) {
+    void notifyListeners(HMessage message, int fromOrder, int toOrder) {
+        for (int x = fromOrder; x <= toOrder; x++) {
+            // listeners can be removed while notifying, work on a snapshot
+            Object[] orderListeners = ((List<?>)listeners[x]).toArray();
+            for (int i = orderListeners.length - 1; i >= 0; i--) {
                 message.getPacket().resetReadIndex();
-                ((List<TrafficListener>)listeners[x]).get(i).onCapture(message);
+                ((TrafficListener)orderListeners[i]).onCapture(message);
             }
         }
         message.getPacket().resetReadIndex();
     }
 
-    public void sendToStream(byte[] buffer) {
-        synchronized (lock) {
-            try {
-                out.write(
-                        (!isEncryptedStream)
-                                ? buffer
-                                : encryptcipher.rc4(buffer)
-                );
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    // the async listeners handle the message one after another
+    private void notifyAsyncListeners(HMessage message, Runnable onDone) {
+        Object[] asyncListeners = listeners.length > 3 ? ((List<?>)listeners[3]).toArray() : new Object[0];
+        notifyAsyncListeners(message, asyncListeners, asyncListeners.length - 1, onDone);
+    }
+    private void notifyAsyncListeners(HMessage message, Object[] asyncListeners, int i, Runnable onDone) {
+        message.getPacket().resetReadIndex();
+        if (i < 0) {
+            onDone.run();
+            return;
         }
+
+        ((AsyncTrafficListener)asyncListeners[i]).onCapture(message, () -> notifyAsyncListeners(message, asyncListeners, i - 1, onDone));
+    }
+
+    /**
+     * Queues a packet to be written after everything that has been forwarded or injected so far
+     * @return false if the packet can't be sent, the stream is closed or its RC4 table isn't known yet
+     */
+    public boolean sendToStream(byte[] buffer) {
+        return out.write(buffer, isEncryptedStream);
+    }
+
+    /**
+     * Waits until at most maxFrames packets are waiting to be written to the stream, or the stream is gone
+     */
+    public void awaitWriteBacklog(int maxFrames) throws InterruptedException {
+        out.awaitBacklog(maxFrames);
     }
 
     public void flush() throws IOException {
@@ -132,26 +202,104 @@ public abstract class Handler {
             HPacket[] hpackets = payloadBuffer.receive();
 
             for (HPacket hpacket : hpackets){
+                long position = streamPosition;
+                streamPosition += hpacket.getBytesLength();
+
                 HMessage hMessage = new HMessage(hpacket, getMessageSide(), currentIndex);
                 boolean isencrypted = isEncryptedStream;
-                if (isDataStream) {
-                    notifyListeners(hMessage);
+                boolean notify = isDataStream;
+                InFlight entry = new InFlight(
+                        hMessage, hpacket, notify, isencrypted,
+                        isencrypted && encryptedFrom != -1 && position >= encryptedFrom ? position - encryptedFrom : -1,
+                        encryptedFrom != -1 ? streamPosition - encryptedFrom : -1
+                );
+
+                synchronized (inFlight) {
+                    while (pipelined && inFlight.size() >= MAX_IN_FLIGHT) {
+                        try {
+                            inFlight.wait();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    inFlight.add(entry);
                 }
 
-                if (!hMessage.isBlocked())	{
-                    out.write(
-                            (!isencrypted)
-                                    ? hMessage.getPacket().toBytes()
-                                    : encryptcipher.rc4(hMessage.getPacket().toBytes())
-                    );
+                if (notify) {
+                    notifyListeners(hMessage, 0, 1);
+
+                    CountDownLatch handled = pipelined ? null : new CountDownLatch(1);
+                    notifyAsyncListeners(hMessage, () -> {
+                        entry.done = true;
+                        drain();
+                        if (handled != null) handled.countDown();
+                    });
+                    if (handled != null) {
+                        try {
+                            handled.await();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                else {
+                    entry.done = true;
+                    drain();
                 }
                 currentIndex++;
             }
         }
     }
 
+    // forwards the packets at the front that are done, can be called from any thread
+    private void drain() {
+        synchronized (inFlight) {
+            while (!inFlight.isEmpty() && inFlight.peek().done) {
+                forward(inFlight.poll());
+            }
+            inFlight.notifyAll();
+        }
+    }
+
+    private void forward(InFlight entry) {
+        HMessage hMessage = entry.message;
+        if (entry.notify) {
+            notifyListeners(hMessage, 2, 2);
+        }
+
+        if (!hMessage.isBlocked())	{
+            HPacket packet = hMessage.getPacket();
+            if (entry.keystreamPosition != -1) {
+                byte[] original = (packet == entry.original && !packet.isReplaced())
+                        ? ciphertext.get(entry.keystreamPosition, packet.getBytesLength())
+                        : null;
+                out.write(packet, original, entry.keystreamPosition);
+            }
+            else {
+                out.write(packet, entry.encrypted);
+            }
+        }
+        if (entry.releasePosition != -1) {
+            ciphertext.release(entry.releasePosition);
+        }
+    }
+
     public abstract HMessage.Side getMessageSide();
 
+    /**
+     * Stops the writer thread once everything queued so far has been written
+     */
+    public void close() {
+        out.close();
+    }
+
+    /**
+     * Gets called when writing to the stream failed, the stream has been closed by then
+     */
+    public void setWriteFailureListener(Runnable listener) {
+        out.setFailureListener(listener);
+    }
+
     public List<Byte> getEncryptedBuffer() {
         return tempEncryptedBuffer;
     }
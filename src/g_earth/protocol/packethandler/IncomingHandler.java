@@ -37,7 +37,7 @@ public class IncomingHandler extends Handler {
             continuedAct(buffer);
         }
         else  {
-            out.write(buffer);
+            out.write(buffer, false);
         }
     }
 
@@ -0,0 +1,206 @@
+package g_earth.protocol.packethandler;
+
+import g_earth.protocol.HPacket;
+import g_earth.protocol.crypto.RC4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The only thread writing to the stream of a Handler. Forwarded and injected packets get queued by any thread
+ * and are written whole, in queue order. Everything that is queued by the time the thread wakes up goes out in one write.
+ * The writer owns the encryption cipher, so the keystream is used in the same order as the packets are written.
+ *
+ * As long as nothing was injected, blocked or edited, the output stream uses the keystream at the same positions as the
+ * input stream, so forwarded packets can be written as the ciphertext they arrived in. The cipher only catches up
+ * (skipping the bytes that weren't encrypted by it) once the streams diverge.
+ *
+ * Once a write to the stream fails (or the stream can't be encrypted) the writer closes the stream and stops,
+ * from then on frames are discarded instead of queued.
+ */
+class OutboundWriter {
+
+    private static class Frame {
+        final HPacket packet;   // null for raw bytes
+        final byte[] raw;
+        final boolean encrypt;
+
+        final byte[] original;          // ciphertext the packet arrived in, if it's unmodified
+        final long keystreamPosition;   // where the packet was in the keystream of the input, -1 if injected
+
+        Frame(HPacket packet, byte[] raw, boolean encrypt, byte[] original, long keystreamPosition) {
+            this.packet = packet;
+            this.raw = raw;
+            this.encrypt = encrypt;
+            this.original = original;
+            this.keystreamPosition = keystreamPosition;
+        }
+    }
+    private static final Frame CLOSE = new Frame(null, null, false, null, -1);
+
+    private final OutputStream out;
+    private final BlockingQueue<Frame> queue = new LinkedBlockingQueue<>();
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream(8192);
+    private byte[] encrypted = new byte[1024];
+
+    private volatile RC4 cipher = null;
+    private volatile boolean failed = false;
+    private volatile boolean stopped = false;
+    private final AtomicInteger backlog = new AtomicInteger(0);    // frames queued but not written yet
+    private final Object backlogLock = new Object();
+    private volatile Runnable failureListener = null;
+    private long encryptedPosition = 0;     // keystream position of the output, including the skipped bytes
+    private long pendingSkip = 0;           // forwarded ciphertext the cipher hasn't caught up with yet
+
+    OutboundWriter(OutputStream out, String name) {
+        this.out = out;
+
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // must be set before the first frame that needs encryption is queued
+    void setCipher(RC4 cipher) {
+        this.cipher = cipher;
+    }
+
+    // gets called once, on the writer thread, after the writer failed and closed the stream
+    void setFailureListener(Runnable failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * @return false if the frame got discarded, because the writer failed or because
+     *         the stream is encrypted and the RC4 table isn't known yet
+     */
+    boolean write(byte[] raw, boolean encrypt) {
+        if (encrypt && cipher == null) return false;
+        return enqueue(new Frame(null, raw, encrypt, null, -1));
+    }
+    boolean write(HPacket packet, boolean encrypt) {
+        return enqueue(new Frame(packet, null, encrypt, null, -1));
+    }
+    // forwards an encrypted packet, original may be null if the packet was modified
+    boolean write(HPacket packet, byte[] original, long keystreamPosition) {
+        return enqueue(new Frame(packet, null, true, original, keystreamPosition));
+    }
+
+    private boolean enqueue(Frame frame) {
+        if (failed) return false;
+        backlog.incrementAndGet();
+        queue.add(frame);
+        return true;
+    }
+
+    /**
+     * Waits until at most maxFrames frames are waiting to be written, or until the writer stopped
+     */
+    void awaitBacklog(int maxFrames) throws InterruptedException {
+        synchronized (backlogLock) {
+            while (backlog.get() > maxFrames && !stopped) {
+                backlogLock.wait();
+            }
+        }
+    }
+
+    // frames queued before closing still get written
+    void close() {
+        queue.add(CLOSE);
+    }
+
+    private void run() {
+        List<Frame> frames = new ArrayList<>();
+        try {
+            boolean closing = false;
+            while (!closing) {
+                frames.add(queue.take());
+                queue.drainTo(frames);
+
+                int appended = 0;
+                for (Frame frame : frames) {
+                    if (frame == CLOSE) {
+                        closing = true;
+                        break;
+                    }
+                    append(frame);
+                    appended++;
+                }
+                frames.clear();
+
+                if (batch.size() > 0) {
+                    batch.writeTo(out);
+                    batch.reset();
+                }
+                backlog.addAndGet(-appended);
+                synchronized (backlogLock) {
+                    backlogLock.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            stopped = true;
+            synchronized (backlogLock) {
+                backlogLock.notifyAll();
+            }
+        }
+    }
+
+    // closing the stream lets the reading side of the session notice, the listener covers the nio engine
+    private void fail() {
+        failed = true;
+        queue.clear();
+        try {
+            out.close();
+        } catch (IOException ignored) {}
+
+        Runnable listener = failureListener;
+        if (listener != null) listener.run();
+    }
+
+    private void append(Frame frame) throws IOException {
+        if (frame.packet != null && !frame.encrypt) {
+            frame.packet.writeTo(batch);
+            return;
+        }
+
+        if (!frame.encrypt) {
+            batch.write(frame.raw);
+            return;
+        }
+
+        if (frame.original != null && frame.keystreamPosition == encryptedPosition) {
+            batch.write(frame.original);
+            pendingSkip += frame.original.length;
+            encryptedPosition += frame.original.length;
+            return;
+        }
+
+        // dropping the packet would leave the stream out of sync with the keystream
+        if (cipher == null) {
+            throw new IOException("the stream needs to be encrypted but the RC4 table isn't known yet");
+        }
+
+        if (pendingSkip > 0) {
+            cipher.skip(pendingSkip);
+            pendingSkip = 0;
+        }
+        byte[] bytes = frame.packet != null ? frame.packet.toBytes() : frame.raw;
+        if (encrypted.length < bytes.length) {
+            encrypted = new byte[Math.max(bytes.length, encrypted.length * 2)];
+        }
+        cipher.rc4(bytes, 0, bytes.length, encrypted, 0);
+        batch.write(encrypted, 0, bytes.length);
+        encryptedPosition += bytes.length;
+    }
+}
@@ -31,7 +31,7 @@ public class OutgoingHandler extends Handler {
             continuedAct(buffer);
         }
         else  {
-            out.write(buffer);
+            out.write(buffer, false);
         }
     }
 
@@ -7,52 +7,77 @@ import java.util.Arrays;
 
 public class PayloadBuffer {
 
-    private byte[] buffer = new byte[0];
+    private static final int INITIAL_CAPACITY = 4096;
+
+    // unprocessed bytes live in buffer[start, end), the array only grows or gets compacted when pushing
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int start = 0;
+    private int end = 0;
+
+    // received packets are views on buffer[0, start), those bytes may not be overwritten anymore
+    private boolean hasViews = false;
 
     public HPacket[] pushAndReceive(byte[] tcpData){
         push(tcpData);
         return receive();
     }
     public void push(byte[] tcpData) {
-        buffer = buffer.length == 0 ? tcpData : combineByteArrays(buffer, tcpData);
+        push(tcpData, 0, tcpData.length);
+    }
+    public void push(byte[] tcpData, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(tcpData, offset, buffer, end, length);
+        end += length;
     }
     public HPacket[] receive() {
-        if (buffer.length < 6) return new HPacket[0];
+        if (end - start < 6) return new HPacket[0];
 
-        HPacket total = new HPacket(buffer);
-        if (total.getBytesLength() - 4 == total.length())	{
-            buffer = new byte[0];
-            return new HPacket[]{total};
-        }
-        else if (total.getBytesLength() - 4 > total.length())	{
-            ArrayList<HPacket> all = new ArrayList<>();
-            while (total.getBytesLength() >= 4 && total.getBytesLength() - 4 >= total.length()){
-                all.add(new HPacket(Arrays.copyOfRange(buffer, 0, total.length() + 4)));
-                buffer = Arrays.copyOfRange(buffer, total.length() + 4, buffer.length);
-                total = new HPacket(buffer);
-            }
-            return all.toArray(new HPacket[all.size()]);
-        }
-        else	{
-            return new HPacket[0];
+        ArrayList<HPacket> all = new ArrayList<>();
+        while (end - start >= 4) {
+            int length = readLength(start);
+            if (length < 0 || end - start - 4 < length) break;
+
+            all.add(new HPacket(buffer, start, 4 + length));
+            hasViews = true;
+            start += 4 + length;
         }
+
+        return all.toArray(new HPacket[all.size()]);
+    }
+
+    private int readLength(int index) {
+        return ((buffer[index] & 0xFF) << 24) |
+                ((buffer[index + 1] & 0xFF) << 16) |
+                ((buffer[index + 2] & 0xFF) << 8) |
+                (buffer[index + 3] & 0xFF);
     }
 
+    private void ensureCapacity(int extra) {
+        if (end + extra <= buffer.length) return;
 
-    private byte[] combineByteArrays(byte[] arr1, byte[] arr2)	{
-        byte[] combined = new byte[arr1.length + arr2.length];
-        System.arraycopy(arr1,0,combined,0         ,arr1.length);
-        System.arraycopy(arr2,0,combined,arr1.length,arr2.length);
-        return combined;
+        int size = end - start;
+        if (!hasViews && size + extra <= buffer.length) {
+            System.arraycopy(buffer, start, buffer, 0, size);
+        }
+        else {
+            // packets handed out still point into the old array, so it is left untouched
+            int capacity = hasViews ? buffer.length : buffer.length * 2;
+            byte[] fresh = new byte[Math.max(capacity, size + extra)];
+            System.arraycopy(buffer, start, fresh, 0, size);
+            buffer = fresh;
+            hasViews = false;
+        }
+        start = 0;
+        end = size;
     }
 
 
     public byte[] peak() {
-        return buffer;
+        return Arrays.copyOfRange(buffer, start, end);
     }
     public byte[] forceClear() {
-        byte[] buff = buffer;
-        buffer = new byte[0];
+        byte[] buff = peak();
+        start = end;
         return buff;
     }
 
@@ -4,6 +4,8 @@ import javafx.scene.control.Tab;
 import javafx.scene.control.TabPane;
 import javafx.scene.layout.Pane;
 import javafx.stage.Stage;
+import g_earth.Main;
+import g_earth.protocol.AsyncPacketQueue;
 import g_earth.protocol.HConnection;
 import g_earth.ui.connection.Connection;
 import g_earth.ui.extensions.Extensions;
@@ -34,6 +36,19 @@ public class GEarthController {
 
     public GEarthController() {
         hConnection = new HConnection();
+        hConnection.setNioEngineEnabled(Main.hasFlag("--nio"));
+        hConnection.setUpstreamPreconnectEnabled(Main.hasFlag("--preconnect"));
+        hConnection.setPipelinedInterception(Main.hasFlag("--pipelined"));
+
+        // --async-overflow=block|drop_oldest|reject
+        String overflowPolicy = Main.getArgument("--async-overflow");
+        if (overflowPolicy != null) {
+            try {
+                hConnection.setAsyncOverflowPolicy(AsyncPacketQueue.OverflowPolicy.valueOf(overflowPolicy.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public void initialize() {
@@ -76,6 +76,8 @@ public class Connection extends SubForm {
     public void onParentSet(){
         getHConnection().addStateChangeListener((oldState, newState) -> Platform.runLater(() -> {
             if (newState == HConnection.State.NOT_CONNECTED) {
+                // also when it got aborted by G-Earth itself (no host could be resolved)
+                isBusy = false;
                 updateInputUI();
                 lblState.setText("Not connected");
                 btnConnect.setText("Connect");
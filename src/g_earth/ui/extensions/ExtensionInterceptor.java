@@ -0,0 +1,276 @@
+package g_earth.ui.extensions;
+
+import g_earth.Main;
+import g_earth.protocol.*;
+import g_earth.ui.extensions.Extensions.CAPABILITIES;
+import g_earth.ui.extensions.Extensions.INCOMING_MESSAGES_IDS;
+import g_earth.ui.extensions.Extensions.OUTGOING_MESSAGES_IDS;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The part of the extension protocol that doesn't need the UI: sends the intercepted packets to the
+ * subscribed extensions and lets them continue once every extension replied, answers the flag requests
+ * and sends the packets extensions ask for.
+ */
+class ExtensionInterceptor implements AsyncTrafficListener {
+
+    private final HConnection hConnection;
+
+    private final List<GEarthExtension> gEarthExtensions = new ArrayList<>();
+    private volatile InterceptionRoutes interceptionRoutes = InterceptionRoutes.EMPTY;
+    private final Map<GEarthExtension, GEarthExtension.ReceiveMessageListener> messageListeners = new ConcurrentHashMap<>();
+
+    // packets that are waiting for extensions to reply, by side and index
+    private final Map<Long, PendingReplies> pendingReplies = new ConcurrentHashMap<>();
+    // replies that are still owed on packets of an ended connection, by extension and reply key
+    private final Map<GEarthExtension, Map<Long, Integer>> staleReplies = new ConcurrentHashMap<>();
+
+    private static long replyKey(HMessage.Side side, int index) {
+        return ((long)side.ordinal() << 32) | (index & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The extensions that still have to reply on an intercepted packet,
+     * onDone gets called once all of them replied or disconnected
+     */
+    private class PendingReplies {
+        private final HMessage message;
+        private final Set<GEarthExtension> extensions;
+        private final Runnable onDone;
+        private boolean isBlocked = false;
+
+        PendingReplies(HMessage message, Set<GEarthExtension> extensions, Runnable onDone) {
+            this.message = message;
+            this.extensions = extensions;
+            this.onDone = onDone;
+        }
+
+        // replies of different extensions arrive on their own threads
+        void reply(GEarthExtension extension, HPacket packet) {
+            synchronized (this) {
+                if (!extensions.contains(extension)) return;
+
+                if (packet.headerId() == INCOMING_MESSAGES_IDS.UNCHANGEDPACKET) {
+                    isBlocked |= packet.readByte(6) == 1;
+                }
+                else if (extension.hasCapability(CAPABILITIES.BINARYMESSAGES)) {
+                    // the reply only gets parsed if the extension changed the message
+                    if (!message.equalsBinary(packet, 6)) {
+                        message.constructFromBinary(packet, 6);
+                    }
+                    isBlocked |= (packet.readByte(6) & 1) != 0;
+                }
+                else {
+                    String stringifiedresponse = packet.readLongString(6);
+                    HMessage responseMessage = new HMessage(stringifiedresponse);
+                    if (!message.equals(responseMessage)) {
+                        message.constructFromString(stringifiedresponse);
+                    }
+                    isBlocked |= responseMessage.isBlocked();
+                }
+            }
+            done(extension);
+        }
+
+        void done(GEarthExtension extension) {
+            synchronized (this) {
+                if (!extensions.remove(extension) || !extensions.isEmpty()) return;
+
+                pendingReplies.remove(replyKey(message.getDestination(), message.getIndex()), this);
+                if (isBlocked) {
+                    message.setBlocked(true);
+                }
+            }
+            onDone.run();
+        }
+
+        // the connection ended, the replies that are still on their way would otherwise match a packet of the next one
+        void drop() {
+            long key = replyKey(message.getDestination(), message.getIndex());
+            synchronized (this) {
+                if (!pendingReplies.remove(key, this)) return;
+
+                for (GEarthExtension extension : extensions) {
+                    Map<Long, Integer> stale = staleReplies.computeIfAbsent(extension, e -> new HashMap<>());
+                    synchronized (stale) {
+                        stale.merge(key, 1, Integer::sum);
+                    }
+                }
+                extensions.clear();
+            }
+            onDone.run();
+        }
+    }
+
+    // an extension replies in the order it got the packets, so its stale replies arrive before the ones on the next connection
+    private boolean isStaleReply(GEarthExtension extension, long key) {
+        Map<Long, Integer> stale = staleReplies.get(extension);
+        if (stale == null) return false;
+
+        synchronized (stale) {
+            Integer count = stale.get(key);
+            if (count == null) return false;
+            if (count == 1) stale.remove(key);
+            else stale.put(key, count - 1);
+            return true;
+        }
+    }
+
+    // the index and side of a MANIPULATEDPACKET or UNCHANGEDPACKET reply, without parsing the whole message if possible
+    private static long replyKey(GEarthExtension extension, HPacket packet) {
+        if (packet.headerId() == INCOMING_MESSAGES_IDS.UNCHANGEDPACKET || extension.hasCapability(CAPABILITIES.BINARYMESSAGES)) {
+            return replyKey(packet.readByte(11) == 0 ? HMessage.Side.TOCLIENT : HMessage.Side.TOSERVER, packet.readInteger(7));
+        }
+        HMessage responseMessage = new HMessage(packet.readLongString(6));
+        return replyKey(responseMessage.getDestination(), responseMessage.getIndex());
+    }
+
+    ExtensionInterceptor(HConnection hConnection) {
+        this.hConnection = hConnection;
+
+        hConnection.addStateChangeListener((oldState, newState) -> {
+            if (newState == HConnection.State.CONNECTED) {
+                for (GEarthExtension extension : getExtensions()) {
+                    extension.sendMessage(new HPacket(OUTGOING_MESSAGES_IDS.CONNECTIONSTART));
+                }
+            }
+            if (oldState == HConnection.State.CONNECTED) {
+                // the next connection starts counting the packet indexes at 0 again
+                for (PendingReplies pending : pendingReplies.values()) {
+                    pending.drop();
+                }
+                for (GEarthExtension extension : getExtensions()) {
+                    extension.sendMessage(new HPacket(OUTGOING_MESSAGES_IDS.CONNECTIONEND));
+                }
+            }
+        });
+    }
+
+    private List<GEarthExtension> getExtensions() {
+        synchronized (gEarthExtensions) {
+            return new ArrayList<>(gEarthExtensions);
+        }
+    }
+
+    private void updateInterceptionRoutes() {
+        synchronized (gEarthExtensions) {
+            interceptionRoutes = new InterceptionRoutes(gEarthExtensions);
+        }
+    }
+
+    // the packet continues once every extension replied, the handler may send the next packets in the meantime
+    @Override
+    public void onCapture(HMessage message, Runnable onDone) {
+        Set<GEarthExtension> collection = interceptionRoutes.get(message.getDestination(), message.getPacket().headerId());
+        if (collection.isEmpty()) {
+            onDone.run();
+            return;
+        }
+
+        // built before sending anything, replies may already edit the message
+        HPacket stringRequest = null;
+        HPacket binaryRequest = null;
+        for (GEarthExtension extension : collection) {
+            if (extension.hasCapability(CAPABILITIES.BINARYMESSAGES) && binaryRequest == null) {
+                HPacketBuilder builder = new HPacketBuilder(OUTGOING_MESSAGES_IDS.PACKETINTERCEPT, message.getPacket().getBytesLength() + 16);
+                message.appendBinary(builder);
+                binaryRequest = builder.build();
+            }
+            else if (!extension.hasCapability(CAPABILITIES.BINARYMESSAGES) && stringRequest == null) {
+                String stringified = message.stringify();
+                stringRequest = new HPacketBuilder(OUTGOING_MESSAGES_IDS.PACKETINTERCEPT, stringified.length() + 10)
+                        .appendLongString(stringified)
+                        .build();
+            }
+        }
+
+        PendingReplies pending = new PendingReplies(message, collection, onDone);
+        pendingReplies.put(replyKey(message.getDestination(), message.getIndex()), pending);
+
+        for (GEarthExtension extension : new ArrayList<>(collection)) {
+            boolean sent = extension.sendMessage(extension.hasCapability(CAPABILITIES.BINARYMESSAGES) ? binaryRequest : stringRequest);
+
+            // an extension that disconnected before pending got registered won't be woken up by onDisconnect
+            boolean connected;
+            synchronized (gEarthExtensions) {
+                connected = gEarthExtensions.contains(extension);
+            }
+            if (!sent || !connected) {
+                pending.done(extension);
+            }
+        }
+    }
+
+    void onConnect(GEarthExtension extension) {
+        synchronized (gEarthExtensions) {
+            gEarthExtensions.add(extension);
+        }
+
+        GEarthExtension.ReceiveMessageListener receiveMessageListener = message -> {
+            if (message.headerId() == INCOMING_MESSAGES_IDS.MANIPULATEDPACKET || message.headerId() == INCOMING_MESSAGES_IDS.UNCHANGEDPACKET) {
+                long key = replyKey(extension, message);
+                if (isStaleReply(extension, key)) return;
+
+                PendingReplies pending = pendingReplies.get(key);
+                if (pending != null) {
+                    pending.reply(extension, message);
+                }
+            }
+            else if (message.headerId() == INCOMING_MESSAGES_IDS.REQUESTFLAGS) { // no body
+                HPacketBuilder packet = new HPacketBuilder(OUTGOING_MESSAGES_IDS.FLAGSCHECK);
+                packet.appendInt(Main.args.length);
+                for (String arg : Main.args) {
+                    packet.appendString(arg);
+                }
+                extension.sendMessage(packet.build());
+            }
+            else if (message.headerId() == INCOMING_MESSAGES_IDS.SENDMESSAGE) {
+                Byte side = message.readByte();
+                int byteLength = message.readInteger();
+                byte[] packetAsByteArray = message.readBytes(byteLength);
+
+                HPacket packet = new HPacket(packetAsByteArray);
+                // this is the extension's reader thread, it also delivers the replies to intercepted packets,
+                // so it must not wait for space in the queue
+                if (!packet.isCorrupted()) {
+                    if (side == 0) {        // toclient
+                        hConnection.offerToClientAsync(packet);
+                    }
+                    else if (side == 1) {   // toserver
+                        hConnection.offerToServerAsync(packet);
+                    }
+                }
+            }
+        };
+        messageListeners.put(extension, receiveMessageListener);
+        extension.addOnReceiveMessageListener(receiveMessageListener);
+
+        extension.sendMessage(new HPacketBuilder(OUTGOING_MESSAGES_IDS.INIT).appendInt(extension.getCapabilities()).build());
+
+        // only intercept packets once the extension knows which format to expect
+        extension.onSubscriptionsChanged(observable -> updateInterceptionRoutes());
+        updateInterceptionRoutes();
+        if (hConnection.getState() == HConnection.State.CONNECTED) {
+            extension.sendMessage(new HPacket(OUTGOING_MESSAGES_IDS.CONNECTIONSTART));
+        }
+    }
+
+    void onDisconnect(GEarthExtension extension) {
+        synchronized (gEarthExtensions) {
+            gEarthExtensions.remove(extension);
+        }
+        updateInterceptionRoutes();
+        for (PendingReplies pending : pendingReplies.values()) {
+            pending.done(extension);
+        }
+
+        staleReplies.remove(extension);
+
+        GEarthExtension.ReceiveMessageListener receiveMessageListener = messageListeners.remove(extension);
+        if (receiveMessageListener != null) {
+            extension.removeOnReceiveMessageListener(receiveMessageListener);
+        }
+    }
+}
@@ -8,7 +8,6 @@ import javafx.scene.control.TextField;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
-import g_earth.Main;
 import g_earth.protocol.*;
 import g_earth.ui.SubForm;
 import g_earth.ui.extensions.executer.ExecutionInfo;
@@ -74,7 +73,8 @@ import java.util.*;
  *      -----------------------------------------------------------------------------------------------------
  *      |  6   |   CONNECTION END   |        Empty body, just a note that a connection has ended            |
 *      -----------------------------------------------------------------------------------------------------
- *      |  7   |        INIT        |        Empty body, a connection with G-Earth has been set up          |
+ *      |  7   |        INIT        |     A connection with G-Earth has been set up. Body: int with the     |
+ *      |      |                    |   capabilities of EXTENSION-INFO G-Earth agreed on (may be absent)    |
  *      -----------------------------------------------------------------------------------------------------
  *      |  99  |     FREE FLOW      |                      extension-specific body                          |
  *      -----------------------------------------------------------------------------------------------------
@@ -83,7 +83,11 @@ import java.util.*;
  *      -----------------------------------------------------------------------------------------------------
  *      |  ID  |       TITLE        |                         BODY & DESCRIPTION                            |
  *      -----------------------------------------------------------------------------------------------------
- *      |  1   |  EXTENSION-INFO*   |                      Response for INFO-REQUEST                        |
+ *      |  1   |  EXTENSION-INFO*   |   Response for INFO-REQUEST, may end with an int of capabilities:     |
+ *      |      |                    |   1 = binary HMessages in PACKET-INTERCEPT and MANIPULATED-PACKET:    |
+ *      |      |                    |   byte flags (1 = blocked, 2 = edited), int index, byte side          |
+ *      |      |                    |   (0 = to client, 1 = to server), the packet bytes (see HMessage)     |
+ *      |      |                    |   2 = UNCHANGED-PACKET replies                                        |
  *      -----------------------------------------------------------------------------------------------------
  *      |  2   | MANIPULATED-PACKET*|                    Response for PACKET-INTERCEPT                      |
  *      -----------------------------------------------------------------------------------------------------
@@ -92,6 +96,15 @@ import java.util.*;
  *      |  4   |    SEND-MESSAGE    |   Body: HMessage object. Sends the HPacket wrapped in the HMessage    |
  *      |      |                    |                        to the client/server                           |
  *      -----------------------------------------------------------------------------------------------------
+ *      |  5   |     SUBSCRIBE      |  Body: int count, then count times (byte side, int headerId), where   |
+ *      |      |                    |  side 0 = to client, 1 = to server and headerId -1 = all packets.     |
+ *      |      |                    |  Replaces the previous subscriptions, only those packets will be      |
+ *      |      |                    |  intercepted. Without it, every packet gets intercepted               |
+ *      -----------------------------------------------------------------------------------------------------
+ *      |  6   | UNCHANGED-PACKET*  |  Response for PACKET-INTERCEPT if the packet wasn't edited, instead   |
+ *      |      |                    |  of MANIPULATED-PACKET. Body: byte (1 = blocked), int index,          |
+ *      |      |                    |  byte side (0 = to client, 1 = to server)                             |
+ *      -----------------------------------------------------------------------------------------------------
  *      |  99  |     FREE FLOW      |                      extension-specific body                          |
  *      -----------------------------------------------------------------------------------------------------
  *
@@ -131,13 +144,18 @@ public class Extensions extends SubForm {
         public static final int MANIPULATEDPACKET = 2;  // backend: implemented
         public static final int REQUESTFLAGS = 3;       // backend: implemented
         public static final int SENDMESSAGE = 4;        // backend: implemented
+        public static final int INTERCEPTSUBSCRIPTIONS = 5; // backend: implemented
+        public static final int UNCHANGEDPACKET = 6;    // backend: implemented
         public static final int EXTENSIONCONSOLELOG = 98;
         public static final int FREEFLOW = 99;          // no implementation needed yet
     }
 
+    public static class CAPABILITIES {
+        public static final int BINARYMESSAGES = 1;
+        public static final int UNCHANGEDREPLIES = 2;
+    }
 
 
-    private final List<GEarthExtension> gEarthExtensions = new ArrayList<>();
 
     public void initialize() {
         scroller.widthProperty().addListener(observable -> header_ext.setPrefWidth(scroller.getWidth()));
@@ -146,126 +164,14 @@ public class Extensions extends SubForm {
     protected void onParentSet() {
         ExtensionItemContainerProducer producer = new ExtensionItemContainerProducer(extensioncontainer, scroller);
 
-        getHConnection().addStateChangeListener((oldState, newState) -> {
-            if (newState == HConnection.State.CONNECTED) {
-                for (GEarthExtension extension : gEarthExtensions) {
-                    extension.sendMessage(new HPacket(OUTGOING_MESSAGES_IDS.CONNECTIONSTART));
-                }
-            }
-            if (oldState == HConnection.State.CONNECTED) {
-                for (GEarthExtension extension : gEarthExtensions) {
-                    extension.sendMessage(new HPacket(OUTGOING_MESSAGES_IDS.CONNECTIONEND));
-                }
-            }
-        });
-
-        getHConnection().addTrafficListener(1, message -> {
-            Set<GEarthExtension> collection;
-            synchronized (gEarthExtensions) {
-                collection = new HashSet<>(gEarthExtensions);
-            }
-
-
-            String stringified = message.stringify();
-            HPacket manipulatePacketRequest = new HPacket(OUTGOING_MESSAGES_IDS.PACKETINTERCEPT);
-            manipulatePacketRequest.appendLongString(stringified);
-
-            boolean[] isblock = new boolean[1];
-
-            for (GEarthExtension extension : collection) {
-                GEarthExtension.ReceiveMessageListener respondCallback = new GEarthExtension.ReceiveMessageListener() {
-                    @Override
-                    public void act(HPacket packet) {
-                        if (packet.headerId() == INCOMING_MESSAGES_IDS.MANIPULATEDPACKET) {
-                            String stringifiedresponse = packet.readLongString(6);
-                            HMessage responseMessage = new HMessage(stringifiedresponse);
-                            if (responseMessage.getDestination() == message.getDestination() && responseMessage.getIndex() == message.getIndex()) {
-                                if (!message.equals(responseMessage)) {
-                                    message.constructFromString(stringifiedresponse);
-                                }
-                                if (responseMessage.isBlocked()) {
-                                    isblock[0] = true;
-                                }
-                                synchronized (collection) {
-                                    collection.remove(extension);
-                                }
-
-                                extension.removeOnReceiveMessageListener(this);
-                            }
-                        }
-                    }
-                };
-                extension.addOnReceiveMessageListener(respondCallback);
-
-                extension.sendMessage(manipulatePacketRequest);
-            }
+        ExtensionInterceptor interceptor = new ExtensionInterceptor(getHConnection());
+        getHConnection().addAsyncTrafficListener(interceptor);
 
-            //block untill all extensions have responded
-            List<GEarthExtension> willdelete = new ArrayList<>();
-            while (!collection.isEmpty()) {
-
-                synchronized (collection) {
-                    for (GEarthExtension extension : collection) {
-                        synchronized (gEarthExtensions) {
-                            if (!gEarthExtensions.contains(extension)) willdelete.add(extension);
-                        }
-                    }
-                    for (int i = willdelete.size() - 1; i >= 0; i--) {
-                        collection.remove(willdelete.get(i));
-                        willdelete.remove(i);
-                    }
-                }
-
-                try {Thread.sleep(1);} catch (InterruptedException e) {e.printStackTrace();}
-            }
-
-            if (isblock[0]) {
-                message.setBlocked(true);
-            }
-        });
-
-
-        HashMap<GEarthExtension, GEarthExtension.ReceiveMessageListener> messageListeners = new HashMap<>();
         try {
             extensionsRegistrer = new GEarthExtensionsRegistrer(new GEarthExtensionsRegistrer.ExtensionRegisterObserver() {
                 @Override
                 public void onConnect(GEarthExtension extension) {
-                    synchronized (gEarthExtensions) {
-                        gEarthExtensions.add(extension);
-                    }
-
-                    GEarthExtension.ReceiveMessageListener receiveMessageListener = message -> {
-                        if (message.headerId() == INCOMING_MESSAGES_IDS.REQUESTFLAGS) { // no body
-                            HPacket packet = new HPacket(OUTGOING_MESSAGES_IDS.FLAGSCHECK);
-                            packet.appendInt(Main.args.length);
-                            for (String arg : Main.args) {
-                                packet.appendString(arg);
-                            }
-                            extension.sendMessage(packet);
-                        }
-                        else if (message.headerId() == INCOMING_MESSAGES_IDS.SENDMESSAGE) {
-                            Byte side = message.readByte();
-                            int byteLength = message.readInteger();
-                            byte[] packetAsByteArray = message.readBytes(byteLength);
-
-                            HPacket packet = new HPacket(packetAsByteArray);
-                            if (!packet.isCorrupted()) {
-                                if (side == 0) {        // toclient
-                                    getHConnection().sendToClientAsync(packet);
-                                }
-                                else if (side == 1) {   // toserver
-                                    getHConnection().sendToServerAsync(packet);
-                                }
-                            }
-                        }
-                    };
-                    messageListeners.put(extension, receiveMessageListener);
-                    extension.addOnReceiveMessageListener(receiveMessageListener);
-
-                    extension.sendMessage(new HPacket(OUTGOING_MESSAGES_IDS.INIT));
-                    if (getHConnection().getState() == HConnection.State.CONNECTED) {
-                        extension.sendMessage(new HPacket(OUTGOING_MESSAGES_IDS.CONNECTIONSTART));
-                    }
+                    interceptor.onConnect(extension);
                     Platform.runLater(() -> producer.extensionConnected(extension));
                     extension.onRemoveClick(observable -> {
                         try {
@@ -279,12 +185,7 @@ public class Extensions extends SubForm {
 
                 @Override
                 public void onDisconnect(GEarthExtension extension) {
-                    synchronized (gEarthExtensions) {
-                        gEarthExtensions.remove(extension);
-                    }
-
-                    extension.removeOnReceiveMessageListener(messageListeners.get(extension));
-                    messageListeners.remove(extension);
+                    interceptor.onDisconnect(extension);
                     Platform.runLater(extension::delete);
                 }
             });
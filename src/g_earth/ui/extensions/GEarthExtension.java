@@ -1,14 +1,16 @@
 package g_earth.ui.extensions;
 
 import javafx.beans.InvalidationListener;
+import g_earth.protocol.HMessage;
 import g_earth.protocol.HPacket;
+import g_earth.protocol.HPacketBuilder;
 
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by Jonas on 21/06/18.
@@ -29,13 +31,21 @@ public class GEarthExtension {
 
     private Socket connection;
 
+    // the optional protocol features of Extensions.CAPABILITIES both sides support
+    private int capabilities;
+
+    // header ids per side the extension intercepts (-1 = all), null if it never told (older extensions get everything)
+    private volatile Map<HMessage.Side, Set<Integer>> subscriptions = null;
+
+    private static final int SUPPORTED_CAPABILITIES = Extensions.CAPABILITIES.BINARYMESSAGES | Extensions.CAPABILITIES.UNCHANGEDREPLIES;
+
     //calls callback when the extension is creatd
     static void create(Socket connection, OnCreatedCallback callback, OnDisconnectedCallback onDisconnectedCallback) {
 
         new Thread(() -> {
             try {
                 synchronized (connection) {
-                    connection.getOutputStream().write((new HPacket(Extensions.OUTGOING_MESSAGES_IDS.INFOREQUEST)).toBytes());
+                    new HPacketBuilder(Extensions.OUTGOING_MESSAGES_IDS.INFOREQUEST).build().writeTo(connection.getOutputStream());
                 }
 
                 InputStream inputStream = connection.getInputStream();
@@ -83,6 +93,9 @@ public class GEarthExtension {
         this.leaveButtonVisible = extensionInfo.readBoolean();
         this.deleteButtonVisible = extensionInfo.readBoolean();
 
+        // older extensions don't send their capabilities
+        this.capabilities = extensionInfo.isEOF() == 0 ? extensionInfo.readInteger() & SUPPORTED_CAPABILITIES : 0;
+
         this.connection = connection;
 
         GEarthExtension selff = this;
@@ -103,8 +116,15 @@ public class GEarthExtension {
                     HPacket packet = new HPacket(headerandbody);
                     packet.fixLength();
 
-                    for (int i = receiveMessageListeners.size() - 1; i >= 0; i--) {
-                        receiveMessageListeners.get(i).act(packet);
+                    if (packet.headerId() == Extensions.INCOMING_MESSAGES_IDS.INTERCEPTSUBSCRIPTIONS) {
+                        setSubscriptions(packet);
+                        packet.setReadIndex(6);
+                    }
+
+                    // listeners get added and removed by the threads waiting for a reply
+                    ReceiveMessageListener[] listeners = receiveMessageListeners.toArray(new ReceiveMessageListener[0]);
+                    for (int i = listeners.length - 1; i >= 0; i--) {
+                        listeners[i].act(packet);
                         packet.setReadIndex(6);
                     }
 
@@ -127,6 +147,39 @@ public class GEarthExtension {
 
     }
 
+    private void setSubscriptions(HPacket packet) {
+        Map<HMessage.Side, Set<Integer>> subscriptions = new EnumMap<>(HMessage.Side.class);
+        subscriptions.put(HMessage.Side.TOCLIENT, new HashSet<>());
+        subscriptions.put(HMessage.Side.TOSERVER, new HashSet<>());
+
+        int count = packet.readInteger();
+        for (int i = 0; i < count; i++) {
+            HMessage.Side side = packet.readByte() == 0 ? HMessage.Side.TOCLIENT : HMessage.Side.TOSERVER;
+            subscriptions.get(side).add(packet.readInteger());
+        }
+        this.subscriptions = subscriptions;
+
+        for (int i = onSubscriptionsChangedListeners.size() - 1; i >= 0; i--) {
+            onSubscriptionsChangedListeners.get(i).invalidated(null);
+        }
+    }
+
+    /**
+     * @return the header ids of the given side the extension intercepts, -1 means all of them.
+     * null if the extension didn't subscribe on specific headers, then it gets every packet
+     */
+    public Set<Integer> getSubscriptions(HMessage.Side side) {
+        Map<HMessage.Side, Set<Integer>> subscriptions = this.subscriptions;
+        return subscriptions == null ? null : subscriptions.get(side);
+    }
+
+    public int getCapabilities() {
+        return capabilities;
+    }
+    public boolean hasCapability(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
     public Socket getConnection() {
         return connection;
     }
@@ -172,7 +225,7 @@ public class GEarthExtension {
     public boolean sendMessage(HPacket message) {
         try {
             synchronized (this) {
-                connection.getOutputStream().write(message.toBytes());
+                message.writeTo(connection.getOutputStream());
             }
             return true;
         } catch (IOException e) {
@@ -181,7 +234,7 @@ public class GEarthExtension {
     }
 
 
-    private List<ReceiveMessageListener> receiveMessageListeners = new ArrayList<>();
+    private List<ReceiveMessageListener> receiveMessageListeners = new CopyOnWriteArrayList<>();
     public void addOnReceiveMessageListener(ReceiveMessageListener receiveMessageListener) {
         receiveMessageListeners.add(receiveMessageListener);
     }
@@ -220,6 +273,11 @@ public class GEarthExtension {
         }
     }
 
+    private List<InvalidationListener> onSubscriptionsChangedListeners = new CopyOnWriteArrayList<>();
+    public void onSubscriptionsChanged(InvalidationListener listener) {
+        onSubscriptionsChangedListeners.add(listener);
+    }
+
     private List<InvalidationListener> onDeleteListeners = new ArrayList<>();
     public void onDelete(InvalidationListener listener) {
         onDeleteListeners.add(listener);
@@ -0,0 +1,51 @@
+package g_earth.ui.extensions;
+
+import g_earth.protocol.HMessage;
+
+import java.util.*;
+
+/**
+ * Which extensions want to intercept a packet, per side and header id.
+ * Gets rebuilt whenever an extension connects, disconnects or changes its subscriptions.
+ */
+class InterceptionRoutes {
+
+    static final InterceptionRoutes EMPTY = new InterceptionRoutes(Collections.emptyList());
+
+    private final Map<HMessage.Side, List<GEarthExtension>> allHeaders = new EnumMap<>(HMessage.Side.class);
+    private final Map<HMessage.Side, Map<Integer, List<GEarthExtension>>> perHeader = new EnumMap<>(HMessage.Side.class);
+
+    InterceptionRoutes(Collection<GEarthExtension> extensions) {
+        for (HMessage.Side side : HMessage.Side.values()) {
+            List<GEarthExtension> all = new ArrayList<>();
+            Map<Integer, List<GEarthExtension>> headers = new HashMap<>();
+
+            for (GEarthExtension extension : extensions) {
+                Set<Integer> subscriptions = extension.getSubscriptions(side);
+                if (subscriptions == null || subscriptions.contains(-1)) {
+                    all.add(extension);
+                }
+                else {
+                    for (int headerId : subscriptions) {
+                        headers.computeIfAbsent(headerId, k -> new ArrayList<>()).add(extension);
+                    }
+                }
+            }
+
+            allHeaders.put(side, all);
+            perHeader.put(side, headers);
+        }
+    }
+
+    /**
+     * @return a new set with the extensions that intercept this packet, empty if the packet can go straight through
+     */
+    Set<GEarthExtension> get(HMessage.Side side, int headerId) {
+        Set<GEarthExtension> result = new HashSet<>(allHeaders.get(side));
+        List<GEarthExtension> subscribed = perHeader.get(side).get(headerId);
+        if (subscribed != null) {
+            result.addAll(subscribed);
+        }
+        return result;
+    }
+}
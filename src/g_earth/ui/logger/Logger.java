@@ -15,7 +15,9 @@ import g_earth.ui.SubForm;
 import g_earth.ui.logger.loggerdisplays.PacketLogger;
 import g_earth.ui.logger.loggerdisplays.PacketLoggerFactory;
 
+import java.net.UnknownHostException;
 import java.util.Calendar;
+import java.util.concurrent.TimeoutException;
 
 public class Logger extends SubForm {
 
@@ -49,6 +51,11 @@ public class Logger extends SubForm {
             }
         }));
 
+        getHConnection().addResolveFailureListener((host, port, reason) -> Platform.runLater(() ->
+                miniLogText(Color.RED, "Could not resolve " + host + ":" + port +
+                        (reason instanceof UnknownHostException ? ", unknown host" : reason instanceof TimeoutException ? ", timed out" : ""))
+        ));
+
         getHConnection().addTrafficListener(2, message -> { Platform.runLater(() -> {
             if (message.getDestination() == HMessage.Side.TOCLIENT && cbx_blockIn.isSelected() ||
                     message.getDestination() == HMessage.Side.TOSERVER && cbx_blockOut.isSelected()) return;